@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.control.MotorController;
+import co.aospa.popupcamera.control.MotorHal;
+import co.aospa.popupcamera.control.Scheduler;
+
+/**
+ * Motor that reaches its end position a fixed travel time after each command.
+ * Reported status can be overridden, e.g. with statuses from a recorded trace.
+ */
+public class FakeMotorHal implements MotorHal {
+
+    public interface Listener {
+        void onCommand(String command, long time);
+    }
+
+    private final Scheduler mScheduler;
+    private final long mTravelMs;
+    private final Listener mListener;
+    private int mStatus = MotorController.MOTOR_STATUS_TAKEBACK_OK;
+    private Runnable mArrival;
+
+    public FakeMotorHal(Scheduler scheduler, long travelMs, Listener listener) {
+        mScheduler = scheduler;
+        mTravelMs = travelMs;
+        mListener = listener;
+    }
+
+    public void setStatus(int status) {
+        if (mArrival != null) {
+            mScheduler.removeCallbacks(mArrival);
+            mArrival = null;
+        }
+        mStatus = status;
+    }
+
+    @Override
+    public int getMotorStatus() {
+        return mStatus;
+    }
+
+    @Override
+    public boolean popupMotor(int cookie) {
+        return move("popup", MotorController.MOTOR_STATUS_POPUP_OK);
+    }
+
+    @Override
+    public boolean takebackMotor(int cookie) {
+        return move("takeback", MotorController.MOTOR_STATUS_TAKEBACK_OK);
+    }
+
+    @Override
+    public boolean takebackMotorShortly() {
+        return move("takebackShortly", MotorController.MOTOR_STATUS_TAKEBACK_OK);
+    }
+
+    @Override
+    public boolean calibration() {
+        return move("calibration", MotorController.MOTOR_STATUS_CALIB_OK);
+    }
+
+    private boolean move(String command, int endStatus) {
+        mListener.onCommand(command, mScheduler.uptimeMillis());
+        if (mArrival != null) {
+            mScheduler.removeCallbacks(mArrival);
+        }
+        mArrival = () -> {
+            mArrival = null;
+            mStatus = endStatus;
+        };
+        mScheduler.postDelayed(mArrival, mTravelMs);
+        return true;
+    }
+}
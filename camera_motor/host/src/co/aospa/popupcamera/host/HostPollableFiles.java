@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.utils.PollableFiles;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.HashMap;
+
+/**
+ * PollableFiles for a plain JVM on Linux, using regular files and named pipes.
+ *
+ * Files under the given sysfs root stand in for sysfs attributes; sysfsNotify() plays the
+ * part of sysfs_notify(). FIFOs are opened read-write so that opening them does not
+ * block, which also means they never report a hang-up. The JVM cannot poll(2), so
+ * FIFOs are checked for data every millisecond.
+ */
+public class HostPollableFiles implements PollableFiles {
+
+    private static final long FIFO_CHECK_MS = 1;
+
+    private static final class HostFile {
+        final String path;
+        final RandomAccessFile file;
+        final FileInputStream fifo;
+        boolean notified;
+
+        HostFile(String path, RandomAccessFile file, boolean fifo) throws IOException {
+            this.path = path;
+            this.file = file;
+            this.fifo = fifo ? new FileInputStream(file.getFD()) : null;
+        }
+    }
+
+    private final String mSysfsRoot;
+    private final boolean mVerbose;
+    private final long mStartNanos = System.nanoTime();
+    // Guarded by this
+    private final HashMap<Integer, HostFile> mFiles = new HashMap<>();
+    private int mNextHandle = 1;
+    private boolean mWoken;
+
+    public HostPollableFiles(String sysfsRoot, boolean verbose) {
+        mSysfsRoot = sysfsRoot.endsWith("/") ? sysfsRoot : sysfsRoot + "/";
+        mVerbose = verbose;
+    }
+
+    /**
+     * Raises EVENT_CHANGED on every handle open on the path, like sysfs_notify().
+     */
+    public synchronized void sysfsNotify(String path) {
+        for (HostFile f : mFiles.values()) {
+            if (f.path.equals(path)) {
+                f.notified = true;
+            }
+        }
+        notifyAll();
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    @Override
+    public boolean isFifo(String path) throws IOException {
+        return Files.readAttributes(Paths.get(path), PosixFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS).isOther();
+    }
+
+    @Override
+    public boolean mayNotify(String path) {
+        return path.startsWith(mSysfsRoot);
+    }
+
+    @Override
+    public int open(String path, boolean fifo) throws IOException {
+        HostFile f = new HostFile(path, new RandomAccessFile(path, fifo ? "rw" : "r"), fifo);
+        synchronized (this) {
+            int handle = mNextHandle++;
+            mFiles.put(handle, f);
+            return handle;
+        }
+    }
+
+    private synchronized HostFile get(int handle) throws IOException {
+        HostFile f = mFiles.get(handle);
+        if (f == null) {
+            throw new IOException("Bad handle " + handle);
+        }
+        return f;
+    }
+
+    @Override
+    public int read(int handle, byte[] buffer) throws IOException {
+        HostFile f = get(handle);
+        int available = f.fifo.available();
+        if (available == 0) {
+            return -1;
+        }
+        return f.fifo.read(buffer, 0, Math.min(available, buffer.length));
+    }
+
+    @Override
+    public int pread(int handle, byte[] buffer) throws IOException {
+        HostFile f = get(handle);
+        synchronized (f) {
+            f.file.seek(0);
+            int length = f.file.read(buffer, 0, buffer.length);
+            return Math.max(0, length);
+        }
+    }
+
+    @Override
+    public void close(int handle) {
+        HostFile f;
+        synchronized (this) {
+            f = mFiles.remove(handle);
+        }
+        if (f == null) return;
+        try {
+            f.file.close();
+        } catch (IOException e) {
+            // Ignored, not much we can do anyway
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        mWoken = false;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public synchronized void wake() {
+        mWoken = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void poll(int[] handles, int[] events, int[] revents, int timeoutMs)
+            throws IOException {
+        long deadline = uptimeMillis() + timeoutMs;
+        while (true) {
+            boolean found = false;
+            boolean fifos = false;
+            for (int i = 0; i < handles.length; i++) {
+                HostFile f = get(handles[i]);
+                revents[i] = 0;
+                if (events[i] == EVENT_READABLE) {
+                    fifos = true;
+                    if (f.fifo.available() > 0) {
+                        revents[i] = EVENT_READABLE;
+                    }
+                } else if (f.notified) {
+                    // Acknowledged right away; the watcher re-reads the file anyway
+                    f.notified = false;
+                    revents[i] = EVENT_CHANGED;
+                }
+                found |= revents[i] != 0;
+            }
+            if (found || mWoken) {
+                mWoken = false;
+                return;
+            }
+
+            long wait = timeoutMs < 0 ? 0 : deadline - uptimeMillis();
+            if (timeoutMs >= 0 && wait <= 0) return;
+            if (fifos) {
+                wait = wait == 0 ? FIFO_CHECK_MS : Math.min(wait, FIFO_CHECK_MS);
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void log(String message, Throwable tr) {
+        if (!mVerbose) return;
+        System.err.println("SysfsWatcher: " + message + (tr != null ? " " + tr : ""));
+    }
+}
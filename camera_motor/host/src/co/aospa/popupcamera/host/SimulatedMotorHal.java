@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.control.MotorController;
+import co.aospa.popupcamera.control.MotorHal;
+import co.aospa.popupcamera.control.MotorHalConnection;
+import co.aospa.popupcamera.control.Scheduler;
+
+import java.util.Random;
+
+/**
+ * Simulation of the vendor.xiaomi.hardware.motor@1.0 IMotor HAL with fault injection.
+ *
+ * Moves take the travel time plus uniform jitter and then report POPUP_OK or
+ * TAKEBACK_OK through the callback, or the matching JAMMED status with the configured
+ * jam probability. Calibration ends in CALIB_OK or CALIB_ERROR. While the status is
+ * read mid-travel the previous end position is still reported, like the vendor HAL.
+ *
+ * Any call may kill the HAL with the death probability. Like a HIDL proxy, the proxy the
+ * call went through then fails every call for good and the registered callback is gone;
+ * the death is reported to whoever connected. After the restart delay connect() hands
+ * out a new proxy and registers the callback again. A move interrupted by the death
+ * leaves the motor asking for calibration.
+ */
+public class SimulatedMotorHal implements MotorHalConnection.Connector {
+
+    public interface Listener {
+        /** Mirrors IMotorCallback.onNotify. */
+        void onNotify(int status);
+
+        /** Called for every command the HAL accepts. */
+        void onCommand(String command, long time);
+    }
+
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+    private final Listener mListener;
+
+    private long mTravelMs = 800;
+    private long mJitterMs = 200;
+    private long mCalibrationMs = 3000;
+    private long mRestartMs = 2000;
+    private float mJamProbability;
+    private float mCalibErrorProbability;
+    private float mDeathProbability;
+
+    private int mStatus = MotorController.MOTOR_STATUS_TAKEBACK_OK;
+    private boolean mMoving;
+    private boolean mDead;
+    // Bumped on every death; proxies of earlier incarnations stay dead
+    private int mIncarnation;
+    private boolean mCallbackRegistered;
+    private Runnable mOnDied;
+    private Runnable mArrival;
+    private final Runnable mRestart = new Runnable() {
+        @Override
+        public void run() {
+            mDead = false;
+        }
+    };
+
+    private int mJams;
+    private int mDeaths;
+
+    public SimulatedMotorHal(Scheduler scheduler, Random random, Listener listener) {
+        mScheduler = scheduler;
+        mRandom = random;
+        mListener = listener;
+    }
+
+    public void setTravel(long travelMs, long jitterMs) {
+        mTravelMs = travelMs;
+        mJitterMs = jitterMs;
+    }
+
+    public void setCalibrationMs(long calibrationMs) {
+        mCalibrationMs = calibrationMs;
+    }
+
+    public void setRestartMs(long restartMs) {
+        mRestartMs = restartMs;
+    }
+
+    public void setJamProbability(float probability) {
+        mJamProbability = probability;
+    }
+
+    public void setCalibErrorProbability(float probability) {
+        mCalibErrorProbability = probability;
+    }
+
+    public void setDeathProbability(float probability) {
+        mDeathProbability = probability;
+    }
+
+    public boolean isDead() {
+        return mDead;
+    }
+
+    public boolean isMoving() {
+        return mMoving;
+    }
+
+    /**
+     * @return the status the motor settled in, ignoring HAL death
+     */
+    public int getPosition() {
+        return mStatus;
+    }
+
+    public int getJamCount() {
+        return mJams;
+    }
+
+    public int getDeathCount() {
+        return mDeaths;
+    }
+
+    /**
+     * Simulates the user pushing the raised camera down by hand.
+     */
+    public void press() {
+        if (mDead || mMoving || mStatus != MotorController.MOTOR_STATUS_POPUP_OK) return;
+        notifyCallback(MotorController.MOTOR_STATUS_PRESSED);
+    }
+
+    @Override
+    public MotorHal connect(Runnable onDied) {
+        if (mDead) return null;
+        mCallbackRegistered = true;
+        mOnDied = onDied;
+        return new Proxy(mIncarnation);
+    }
+
+    private void notifyCallback(int status) {
+        if (!mDead && mCallbackRegistered) {
+            mListener.onNotify(status);
+        }
+    }
+
+    private boolean maybeDie(int incarnation) {
+        if (mDead || incarnation != mIncarnation) return true;
+        if (mRandom.nextFloat() >= mDeathProbability) return false;
+        mDead = true;
+        mDeaths++;
+        mIncarnation++;
+        mCallbackRegistered = false;
+        Runnable onDied = mOnDied;
+        mOnDied = null;
+        if (onDied != null) {
+            // Death notifications arrive on a binder thread, not within the failed call
+            mScheduler.post(onDied);
+        }
+        if (mArrival != null) {
+            // The interrupted move leaves the position unknown
+            mScheduler.removeCallbacks(mArrival);
+            mArrival = null;
+            mMoving = false;
+            mStatus = MotorController.MOTOR_STATUS_REQUEST_CALIB;
+        }
+        mScheduler.postDelayed(mRestart, mRestartMs);
+        return true;
+    }
+
+    /**
+     * The IMotor proxy handed out by one connect() call.
+     */
+    private final class Proxy implements MotorHal {
+        private final int mProxyIncarnation;
+
+        Proxy(int incarnation) {
+            mProxyIncarnation = incarnation;
+        }
+
+        @Override
+        public int getMotorStatus() {
+            if (maybeDie(mProxyIncarnation)) return MotorController.MOTOR_STATUS_UNKNOWN;
+            return mStatus;
+        }
+
+        @Override
+        public boolean popupMotor(int cookie) {
+            return move(mProxyIncarnation, "popup", travelTime(),
+                    MotorController.MOTOR_STATUS_POPUP_OK,
+                    MotorController.MOTOR_STATUS_POPUP_JAMMED);
+        }
+
+        @Override
+        public boolean takebackMotor(int cookie) {
+            return move(mProxyIncarnation, "takeback", travelTime(),
+                    MotorController.MOTOR_STATUS_TAKEBACK_OK,
+                    MotorController.MOTOR_STATUS_TAKEBACK_JAMMED);
+        }
+
+        @Override
+        public boolean takebackMotorShortly() {
+            // Emergency retraction at full speed
+            return move(mProxyIncarnation, "takebackShortly", travelTime() / 2,
+                    MotorController.MOTOR_STATUS_TAKEBACK_OK,
+                    MotorController.MOTOR_STATUS_TAKEBACK_JAMMED);
+        }
+
+        @Override
+        public boolean calibration() {
+            return move(mProxyIncarnation, "calibration", mCalibrationMs,
+                    MotorController.MOTOR_STATUS_CALIB_OK,
+                    MotorController.MOTOR_STATUS_CALIB_ERROR);
+        }
+    }
+
+    private long travelTime() {
+        return mTravelMs + (mJitterMs > 0 ? (long) (mRandom.nextFloat() * mJitterMs) : 0);
+    }
+
+    private boolean move(int incarnation, String command, long duration, int okStatus,
+            int failedStatus) {
+        if (maybeDie(incarnation)) return false;
+        mListener.onCommand(command, mScheduler.uptimeMillis());
+        float failProbability = okStatus == MotorController.MOTOR_STATUS_CALIB_OK ?
+                mCalibErrorProbability : mJamProbability;
+        final int endStatus = mRandom.nextFloat() < failProbability ? failedStatus : okStatus;
+        if (mArrival != null) {
+            mScheduler.removeCallbacks(mArrival);
+        }
+        mMoving = true;
+        mArrival = new Runnable() {
+            @Override
+            public void run() {
+                mArrival = null;
+                mMoving = false;
+                mStatus = endStatus;
+                if (endStatus == failedStatus && endStatus != MotorController.MOTOR_STATUS_CALIB_ERROR) {
+                    mJams++;
+                }
+                notifyCallback(endStatus);
+            }
+        };
+        mScheduler.postDelayed(mArrival, duration);
+        return true;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.control.CalibrationPolicy;
+import co.aospa.popupcamera.control.MotorController;
+import co.aospa.popupcamera.control.MotorHalConnection;
+import co.aospa.popupcamera.control.MotorTimingModel;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Drives MotorController with randomized open, close, popup hint, screen, proximity,
+ * free fall and press sequences against SimulatedMotorHal on a virtual clock.
+ *
+ * After each sequence the system is left idle and checked for invariant violations,
+ * such as the camera left up with the screen off or the free fall sensor left armed.
+ * The host mimics PopupCameraService: motor callbacks hop to the scheduler, error
+ * dialogs stay up for a while, the user sometimes accepts calibration and an idle
+ * calibration may start whenever the screen is off.
+ *
+ * Usage: popupcamera-soak [--sequences N] [--seed N] [--jam P] [--death P]
+ *         [--calib-error P] [--travel-ms N] [--jitter-ms N]
+ * Exits with status 1 if any invariant was violated.
+ */
+public class SoakRunner {
+
+    private static final long SETTLE_MS = 10000;
+    private static final int MAX_STEPS = 6;
+    private static final int MAX_EXAMPLES = 5;
+    private static final int LATENCY_BUCKETS = 10001;
+
+    private static final int V_UP_SCREEN_OFF = 0;
+    private static final int V_UP_APP_CLOSED = 1;
+    private static final int V_DOWN_APP_OPEN = 2;
+    private static final int V_FREE_FALL_ARMED = 3;
+    private static final int V_LEDS_ON = 4;
+    private static final int V_EXCEPTION = 5;
+    private static final String[] VIOLATION_NAMES = {
+        "camera up with screen off", "camera up with camera closed",
+        "camera down with camera open", "free fall sensor armed while down",
+        "leds left on", "exception"
+    };
+
+    private static final int TARGET_NONE = 0;
+    private static final int TARGET_UP = 1;
+    private static final int TARGET_DOWN = 2;
+
+    private final Random mRandom;
+    private final VirtualScheduler mScheduler = new VirtualScheduler(0);
+    private final SimulatedMotorHal mMotor;
+    private final MotorHalConnection mConnection;
+    private final MotorController mController;
+    private final CalibrationPolicy mPolicy = new CalibrationPolicy(policy -> { });
+    private final MotorTimingModel mTimingModel = new MotorTimingModel(model -> { });
+
+    // World as seen by the host
+    private boolean mScreenOn = true;
+    private boolean mAppOpen;
+    private boolean mNear;
+    private boolean mFreeFallArmed;
+    private boolean mLedsOn;
+    private boolean mDialogShowing;
+    private boolean mCalibErrorSeen;
+
+    // Latency of the last input that changed the wanted position
+    private int mTarget = TARGET_NONE;
+    private long mTargetTime;
+    private boolean mCommandSeen;
+    private final long[] mCommandLatency = new long[LATENCY_BUCKETS];
+    private final long[] mCompletionLatency = new long[LATENCY_BUCKETS];
+
+    private long mSequence;
+    private long mInputs;
+    private long mCommands;
+    private long mErrorDialogs;
+    private long mCalibrations;
+    private long mIdleCalibrations;
+    private final long[] mViolations = new long[VIOLATION_NAMES.length];
+    private final ArrayList<String> mExamples = new ArrayList<>();
+
+    private SoakRunner(long seed) {
+        mRandom = new Random(seed);
+        mMotor = new SimulatedMotorHal(mScheduler, mRandom, new SimulatedMotorHal.Listener() {
+            @Override
+            public void onNotify(int status) {
+                // PopupCameraService posts HAL callbacks to its main handler
+                mScheduler.post(() -> mController.onMotorEvent(status));
+                if (status == MotorController.MOTOR_STATUS_CALIB_ERROR) {
+                    mCalibErrorSeen = true;
+                }
+                if ((mTarget == TARGET_UP && status == MotorController.MOTOR_STATUS_POPUP_OK) ||
+                        (mTarget == TARGET_DOWN &&
+                        status == MotorController.MOTOR_STATUS_TAKEBACK_OK)) {
+                    addLatency(mCompletionLatency, mScheduler.uptimeMillis() - mTargetTime);
+                    mTarget = TARGET_NONE;
+                }
+            }
+
+            @Override
+            public void onCommand(String command, long time) {
+                mCommands++;
+                boolean up = command.equals("popup");
+                if (!mCommandSeen && ((mTarget == TARGET_UP && up) ||
+                        (mTarget == TARGET_DOWN && command.startsWith("takeback")))) {
+                    mCommandSeen = true;
+                    addLatency(mCommandLatency, time - mTargetTime);
+                }
+            }
+        });
+        // Reconnects after HAL deaths the way PopupCameraService does
+        mConnection = new MotorHalConnection(mMotor, mScheduler);
+        mConnection.connect();
+        mController = new MotorController(mConnection, mScheduler, new MotorController.Host() {
+            @Override
+            public void setLedsOn(boolean on) {
+                mLedsOn = on;
+            }
+
+            @Override
+            public void setFreeFallSensor(boolean enabled) {
+                mFreeFallArmed = enabled;
+            }
+
+            @Override
+            public void goBackHome() {
+                closeApp(50 + mRandom.nextInt(200));
+            }
+
+            @Override
+            public void showFrequentOperateDialog() {
+                showDialog();
+            }
+
+            @Override
+            public void showCalibrationResult(int status) {
+                showDialog();
+            }
+
+            @Override
+            public void handleError(int status) {
+                // Like the service, decide first and only then queue the alert
+                boolean needsCalib = mController.onError(status);
+                closeApp(50 + mRandom.nextInt(200));
+                if (mDialogShowing) return;
+                mErrorDialogs++;
+                showDialog();
+                if (needsCalib && mRandom.nextInt(10) < 8) {
+                    // The user taps "calibrate now" after reading the dialog
+                    mScheduler.postDelayed(() -> {
+                        mCalibrations++;
+                        mController.calibrate();
+                    }, 1000 + mRandom.nextInt(3000));
+                }
+            }
+        }, 10);
+        mController.setCalibrationPolicy(mPolicy);
+        mController.setTimingModel(mTimingModel);
+    }
+
+    private void showDialog() {
+        if (mDialogShowing) return;
+        mDialogShowing = true;
+        mScheduler.postDelayed(() -> { mDialogShowing = false; }, 1000 + mRandom.nextInt(4000));
+    }
+
+    /**
+     * The camera app releases the camera shortly after it leaves the foreground.
+     */
+    private void closeApp(long delay) {
+        if (!mAppOpen) return;
+        mAppOpen = false;
+        mScheduler.postDelayed(() -> {
+            if (!mAppOpen) {
+                setTarget(TARGET_DOWN);
+                mController.onCameraStateChanged(MotorController.CAMERA_STATE_CLOSED);
+            }
+        }, delay);
+    }
+
+    private void setTarget(int target) {
+        mTarget = target;
+        mTargetTime = mScheduler.uptimeMillis();
+        mCommandSeen = false;
+    }
+
+    private static void addLatency(long[] histogram, long ms) {
+        histogram[(int) Math.min(Math.max(ms, 0), LATENCY_BUCKETS - 1)]++;
+    }
+
+    private void step() {
+        mInputs++;
+        switch (mRandom.nextInt(10)) {
+            case 0:
+            case 1:
+                if (!mScreenOn || mAppOpen) break;
+                mAppOpen = true;
+                setTarget(TARGET_UP);
+                if (mRandom.nextBoolean()) {
+                    // The app hints before opening, the broadcast follows later
+                    mController.onPopupHint();
+                    mScheduler.postDelayed(() -> {
+                        if (mAppOpen) {
+                            mController.onCameraStateChanged(MotorController.CAMERA_STATE_OPEN);
+                        }
+                    }, 100 + mRandom.nextInt(400));
+                } else {
+                    mController.onCameraStateChanged(MotorController.CAMERA_STATE_OPEN);
+                }
+                break;
+            case 2:
+            case 3:
+                if (!mAppOpen) break;
+                mAppOpen = false;
+                setTarget(TARGET_DOWN);
+                mController.onCameraStateChanged(MotorController.CAMERA_STATE_CLOSED);
+                break;
+            case 4:
+                mScreenOn = !mScreenOn;
+                if (mScreenOn) {
+                    mController.onScreenOn();
+                } else {
+                    setTarget(TARGET_DOWN);
+                    mController.onScreenOff();
+                    closeApp(50 + mRandom.nextInt(450));
+                }
+                break;
+            case 5:
+                mNear = !mNear;
+                mController.onProximityChanged(mNear);
+                break;
+            case 6:
+                if (!mFreeFallArmed) break;
+                setTarget(TARGET_DOWN);
+                mController.onFreeFall();
+                break;
+            case 7:
+                setTarget(TARGET_DOWN);
+                mMotor.press();
+                break;
+            case 9:
+                // An app hints, then never opens the camera
+                if (!mScreenOn || mAppOpen) break;
+                mController.onPopupHint();
+                break;
+            case 8:
+                // The idle job only runs with the screen off
+                if (!mScreenOn && mPolicy.isCalibrationDue() &&
+                        mController.calibrateInBackground()) {
+                    mIdleCalibrations++;
+                }
+                break;
+        }
+    }
+
+    private void runSequence() {
+        mSequence++;
+        int jams = mMotor.getJamCount();
+        int deaths = mMotor.getDeathCount();
+        mCalibErrorSeen = false;
+        try {
+            int steps = 1 + mRandom.nextInt(MAX_STEPS);
+            for (int i = 0; i < steps; i++) {
+                // Mix rapid toggling with ordinary use
+                long gap = mRandom.nextBoolean() ? mRandom.nextInt(200) : 200 + mRandom.nextInt(3000);
+                mScheduler.runUntil(mScheduler.uptimeMillis() + gap);
+                step();
+            }
+            mScheduler.runUntil(mScheduler.uptimeMillis() + SETTLE_MS);
+            // A position still wanted after settling is not measured any further
+            mTarget = TARGET_NONE;
+        } catch (RuntimeException e) {
+            violation(V_EXCEPTION, e.toString());
+            return;
+        }
+
+        if (mMotor.isDead() || mMotor.isMoving()) return;
+        int position = mMotor.getPosition();
+        boolean up = position == MotorController.MOTOR_STATUS_POPUP_OK;
+        boolean down = position == MotorController.MOTOR_STATUS_TAKEBACK_OK ||
+                position == MotorController.MOTOR_STATUS_CALIB_OK;
+        boolean clean = jams == mMotor.getJamCount() && deaths == mMotor.getDeathCount() &&
+                !mCalibErrorSeen && !mController.isMotorCalibrating();
+        if (up && !mScreenOn) violation(V_UP_SCREEN_OFF, describe());
+        if (up && !mAppOpen) violation(V_UP_APP_CLOSED, describe());
+        if (down && clean && mAppOpen && mScreenOn && !mNear) {
+            violation(V_DOWN_APP_OPEN, describe());
+        }
+        if (mFreeFallArmed && down) violation(V_FREE_FALL_ARMED, describe());
+        if (mLedsOn) violation(V_LEDS_ON, describe());
+    }
+
+    private String describe() {
+        return "t=" + mScheduler.uptimeMillis() + " status=" + mMotor.getPosition() +
+                " screenOn=" + mScreenOn + " appOpen=" + mAppOpen + " near=" + mNear +
+                " freeFall=" + mFreeFallArmed + " leds=" + mLedsOn;
+    }
+
+    private void violation(int type, String detail) {
+        mViolations[type]++;
+        if (mExamples.size() < MAX_EXAMPLES) {
+            mExamples.add("sequence " + mSequence + ": " + VIOLATION_NAMES[type] + " (" +
+                    detail + ")");
+        }
+    }
+
+    private static long percentile(long[] histogram, double p) {
+        long total = 0;
+        for (long count : histogram) total += count;
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p / 100.0 * total);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) return i;
+        }
+        return histogram.length - 1;
+    }
+
+    private static String percentiles(long[] histogram) {
+        return "p50=" + percentile(histogram, 50) + "ms p90=" + percentile(histogram, 90) +
+                "ms p99=" + percentile(histogram, 99) + "ms p99.9=" + percentile(histogram, 99.9) +
+                "ms max=" + percentile(histogram, 100) + "ms";
+    }
+
+    private boolean report(long wallMs) {
+        double seconds = Math.max(wallMs, 1) / 1000.0;
+        System.out.println("sequences=" + mSequence + " inputs=" + mInputs +
+                " commands=" + mCommands + " simulatedHours=" +
+                String.format("%.1f", mScheduler.uptimeMillis() / 3600000.0));
+        System.out.println("wall=" + wallMs + "ms throughput=" +
+                String.format("%.0f", mSequence / seconds) + " sequences/s " +
+                String.format("%.0f", mInputs / seconds) + " inputs/s");
+        System.out.println("faults: jams=" + mMotor.getJamCount() + " halDeaths=" +
+                mMotor.getDeathCount() + " reconnects=" + mConnection.getDeathCount() +
+                " errorDialogs=" + mErrorDialogs +
+                " calibrations=" + mCalibrations + " idleCalibrations=" + mIdleCalibrations);
+        System.out.println("timing: " + mTimingModel);
+        System.out.println("input to command: " + percentiles(mCommandLatency));
+        System.out.println("input to position: " + percentiles(mCompletionLatency));
+
+        long total = 0;
+        System.out.println("violations:");
+        for (int i = 0; i < mViolations.length; i++) {
+            total += mViolations[i];
+            System.out.println("  " + VIOLATION_NAMES[i] + ": " + mViolations[i]);
+        }
+        for (String example : mExamples) {
+            System.out.println("  " + example);
+        }
+        return total == 0;
+    }
+
+    public static void main(String[] args) {
+        long sequences = 1000000;
+        long seed = 1;
+        float jam = 0.001f;
+        float death = 0.0001f;
+        float calibError = 0.05f;
+        long travelMs = 800;
+        long jitterMs = 200;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sequences": sequences = Long.parseLong(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--jam": jam = Float.parseFloat(value); break;
+                case "--death": death = Float.parseFloat(value); break;
+                case "--calib-error": calibError = Float.parseFloat(value); break;
+                case "--travel-ms": travelMs = Long.parseLong(value); break;
+                case "--jitter-ms": jitterMs = Long.parseLong(value); break;
+                default:
+                    System.err.println("unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        SoakRunner runner = new SoakRunner(seed);
+        runner.mMotor.setJamProbability(jam);
+        runner.mMotor.setDeathProbability(death);
+        runner.mMotor.setCalibErrorProbability(calibError);
+        runner.mMotor.setTravel(travelMs, jitterMs);
+        runner.mController.onProximityInit(false);
+
+        long start = System.nanoTime();
+        for (long i = 0; i < sequences; i++) {
+            runner.runSequence();
+        }
+        boolean ok = runner.report((System.nanoTime() - start) / 1000000);
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.utils.SysfsWatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs SysfsWatcher against regular files and a named pipe in a temporary directory.
+ *
+ * Files under sys/ stand in for sysfs attributes: one that notifies on every write and
+ * one that never does, like LED brightness. The check verifies that initial values are
+ * reported, that the notifying attribute is then only read on notification, that the
+ * silent one falls back to the timer, and that FIFO data is reported. Expected reports
+ * are waited for without a tight deadline, so the result does not depend on load.
+ *
+ * Usage: popupcamera-sysfs-watcher-check [--interval-ms N] [--verbose]
+ * Exits with status 1 if any check failed.
+ */
+public class SysfsWatcherCheck {
+
+    private final LinkedBlockingQueue<String> mEvents = new LinkedBlockingQueue<>();
+    private final SysfsWatcher.Listener mListener = (path, value, length) ->
+            mEvents.add(new File(path).getName() + "=" +
+                    new String(value, 0, length, StandardCharsets.US_ASCII).trim());
+
+    private final long mIntervalMs;
+    private HostPollableFiles mFiles;
+    private SysfsWatcher mWatcher;
+    private int mFailures;
+
+    private SysfsWatcherCheck(long intervalMs) {
+        mIntervalMs = intervalMs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long intervalMs = 200;
+        boolean verbose = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--interval-ms":
+                    intervalMs = Long.parseLong(args[++i]);
+                    break;
+                case "--verbose":
+                    verbose = true;
+                    break;
+                default:
+                    System.err.println("Unknown argument " + args[i]);
+                    System.exit(2);
+            }
+        }
+        SysfsWatcherCheck check = new SysfsWatcherCheck(intervalMs);
+        int failures = check.run(verbose);
+        System.out.println(failures == 0 ? "PASS" : "FAIL: " + failures + " check(s)");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private int run(boolean verbose) throws Exception {
+        File dir = Files.createTempDirectory("sysfs-watcher").toFile();
+        File sys = new File(dir, "sys");
+        sys.mkdir();
+        File notifying = new File(sys, "notifying");
+        File silent = new File(sys, "silent");
+        File plain = new File(dir, "plain");
+        File fifo = new File(dir, "fifo");
+        write(notifying, "1");
+        write(silent, "0");
+        write(plain, "a");
+        boolean haveFifo = new ProcessBuilder("mkfifo", fifo.getPath()).start().waitFor() == 0;
+
+        mFiles = new HostPollableFiles(sys.getPath(), verbose);
+        mWatcher = new SysfsWatcher(mFiles, mIntervalMs);
+        mWatcher.start();
+        try {
+            check("watch notifying", mWatcher.watch(notifying.getPath(), mListener));
+            check("watch silent", mWatcher.watch(silent.getPath(), mListener));
+            check("watch plain", mWatcher.watch(plain.getPath(), mListener));
+            if (haveFifo) {
+                check("watch fifo", mWatcher.watch(fifo.getPath(), mListener));
+            } else {
+                System.out.println("SKIP fifo: mkfifo failed");
+            }
+
+            // Initial values, and nothing for the FIFO
+            expectAll("initial values", "notifying=1", "silent=0", "plain=a");
+            check("silent attribute probed", mode(silent).equals("sysfs"));
+
+            write(notifying, "2");
+            mFiles.sysfsNotify(notifying.getPath());
+            expectAll("notification", "notifying=2");
+            check("notifying attribute confirmed", awaitMode(notifying, "notify"));
+
+            // Confirmed attributes are no longer re-read on the timer
+            write(notifying, "3");
+            expectNone("notifying without sysfs_notify", mIntervalMs * 3);
+
+            write(silent, "1");
+            expectAll("silent change on timer", "silent=1");
+            check("silent attribute moved to timer", awaitMode(silent, "timer"));
+            write(silent, "2");
+            expectAll("silent change after fallback", "silent=2");
+
+            write(plain, "b");
+            expectAll("plain file on timer", "plain=b");
+
+            if (haveFifo) {
+                try (FileOutputStream out = new FileOutputStream(fifo)) {
+                    out.write("hello".getBytes(StandardCharsets.US_ASCII));
+                }
+                expectAll("fifo data", "fifo=hello");
+            }
+
+            mWatcher.unwatch(silent.getPath(), mListener);
+            write(silent, "3");
+            expectNone("unwatched file", mIntervalMs * 3);
+        } finally {
+            mWatcher.stop();
+            for (File f : new File[] { notifying, silent, sys, plain, fifo, dir }) {
+                f.delete();
+            }
+        }
+        return mFailures;
+    }
+
+    private String mode(File file) {
+        StringWriter out = new StringWriter();
+        mWatcher.dump(new PrintWriter(out));
+        String prefix = "  " + file.getPath() + ": ";
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith(prefix)) {
+                return line.substring(prefix.length()).trim();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Waits for a mode change the watcher makes on its own thread.
+     */
+    private boolean awaitMode(File file, String mode) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs());
+        while (!mode(file).equals(mode)) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * How long to wait for an expected report. Generous, so that a loaded machine
+     * delays the check rather than failing it.
+     */
+    private long timeoutMs() {
+        return Math.max(5000, mIntervalMs * 10);
+    }
+
+    private void expectAll(String name, String... expected) throws Exception {
+        long timeoutMs = timeoutMs();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        for (String e : expected) {
+            long wait = deadline - System.nanoTime();
+            String event = mEvents.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+            if (!e.equals(event)) {
+                check(name + ": expected " + e + " within " + timeoutMs + "ms, got " + event,
+                        false);
+                mEvents.clear();
+                return;
+            }
+        }
+        String extra = mEvents.poll();
+        check(name + (extra != null ? ": unexpected " + extra : ""), extra == null);
+        mEvents.clear();
+    }
+
+    private void expectNone(String name, long timeoutMs) throws Exception {
+        String event = mEvents.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        check(name + (event != null ? ": unexpected " + event : ""), event == null);
+        mEvents.clear();
+    }
+
+    private void check(String name, boolean ok) {
+        System.out.println((ok ? "ok   " : "FAIL ") + name);
+        if (!ok) {
+            mFailures++;
+        }
+    }
+
+    /**
+     * Rewrites the file in place, like a sysfs store, so the watcher never reads it
+     * truncated.
+     */
+    private static void write(File file, String value) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            byte[] bytes = (value + "\n").getBytes(StandardCharsets.US_ASCII);
+            out.seek(0);
+            out.write(bytes);
+            out.setLength(bytes.length);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.control.EventTrace;
+import co.aospa.popupcamera.control.MotorController;
+import co.aospa.popupcamera.control.MotorTimingModel;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+
+/**
+ * Replays an input trace captured with
+ * "adb shell dumpsys activity service co.aospa.popupcamera/.PopupCameraService trace"
+ * against MotorController on a virtual clock and prints every resulting command.
+ *
+ * Usage: popupcamera-trace-replay [--travel-ms N] [--frequent-count N]
+ *         [--timing DIRECTION:EWMA_MS,SAMPLES,P95_MS,REFERENCE_MS]... <trace file>
+ * The file may be raw or base64 encoded.
+ *
+ * Completion timeouts and LED times come from the learned motor timing, which the trace
+ * does not hold. Without --timing the replay starts from an untrained model, like a new
+ * unit; the service dump prints the options matching the device's current model.
+ */
+public class TraceReplay {
+
+    private static final long DEFAULT_TRAVEL_MS = 800;
+    private static final int DEFAULT_FREQUENT_COUNT = 10;
+    // Time allowed after the last input for pending work to settle
+    private static final long SETTLE_MS = 10000;
+
+    private final VirtualScheduler mScheduler;
+    private final FakeMotorHal mMotor;
+    private final MotorTimingModel mTimingModel;
+    private final MotorController mController;
+    private final ArrayList<Long> mLatencies = new ArrayList<>();
+    private long mLastInputTime;
+    private boolean mInputAnswered = true;
+
+    private TraceReplay(long start, long travelMs, int frequentCount,
+            MotorTimingModel timingModel) {
+        mScheduler = new VirtualScheduler(start);
+        mMotor = new FakeMotorHal(mScheduler, travelMs, this::onCommand);
+        mTimingModel = timingModel;
+        mController = new MotorController(mMotor, mScheduler, new MotorController.Host() {
+            @Override
+            public void setLedsOn(boolean on) {
+                // Lights going off is the tail of an earlier command, not a response
+                log(on ? "ledsOn" : "ledsOff", mScheduler.uptimeMillis(), on);
+            }
+
+            @Override
+            public void setFreeFallSensor(boolean enabled) {
+                onCommand(enabled ? "freeFallOn" : "freeFallOff", mScheduler.uptimeMillis());
+            }
+
+            @Override
+            public void goBackHome() {
+                onCommand("goBackHome", mScheduler.uptimeMillis());
+            }
+
+            @Override
+            public void showFrequentOperateDialog() {
+                onCommand("frequentDialog", mScheduler.uptimeMillis());
+            }
+
+            @Override
+            public void showCalibrationResult(int status) {
+                onCommand("calibrationResult(" + status + ")", mScheduler.uptimeMillis());
+            }
+
+            @Override
+            public void handleError(int status) {
+                // Like the service, count the error and retry before reporting it
+                boolean needsCalib = mController.onError(status);
+                onCommand("error(" + status + (needsCalib ? ", calibrate" : "") + ")",
+                        mScheduler.uptimeMillis());
+            }
+        }, frequentCount);
+        mController.setTimingModel(mTimingModel);
+    }
+
+    private void onCommand(String command, long time) {
+        log(command, time, true);
+    }
+
+    private void log(String command, long time, boolean response) {
+        long latency = time - mLastInputTime;
+        System.out.println(String.format("%10d   -> %-24s +%dms", time, command, latency));
+        if (response && !mInputAnswered) {
+            mInputAnswered = true;
+            mLatencies.add(latency);
+        }
+    }
+
+    private void input(long time, int type, int arg) {
+        mScheduler.runUntil(time);
+        System.out.println(String.format("%10d %s(%d)", time, EventTrace.typeToString(type), arg));
+        mLastInputTime = time;
+        mInputAnswered = false;
+        switch (type) {
+            case EventTrace.TYPE_CAMERA_STATE:
+                mController.onCameraStateChanged(arg);
+                break;
+            case EventTrace.TYPE_SCREEN_ON:
+                mController.onScreenOn();
+                break;
+            case EventTrace.TYPE_SCREEN_OFF:
+                mController.onScreenOff();
+                break;
+            case EventTrace.TYPE_PROXIMITY_INIT:
+                mController.onProximityInit(arg != 0);
+                break;
+            case EventTrace.TYPE_PROXIMITY:
+                mController.onProximityChanged(arg != 0);
+                break;
+            case EventTrace.TYPE_FREE_FALL:
+                mController.onFreeFall();
+                break;
+            case EventTrace.TYPE_MOTOR_EVENT:
+                // The recorded status wins over the travel model
+                mMotor.setStatus(arg);
+                mController.onMotorEvent(arg);
+                break;
+            case EventTrace.TYPE_CALIBRATE:
+                mController.calibrate();
+                break;
+            case EventTrace.TYPE_POPUP_HINT:
+                mController.onPopupHint();
+                break;
+            case EventTrace.TYPE_BACKGROUND_CALIBRATE:
+                mController.calibrateInBackground();
+                break;
+        }
+    }
+
+    private void run(EventTrace trace) {
+        for (int i = 0; i < trace.size(); i++) {
+            input(trace.getTime(i), trace.getType(i), trace.getArg(i));
+        }
+        mScheduler.runUntil(mScheduler.uptimeMillis() + SETTLE_MS);
+    }
+
+    private void printSummary(int inputs) {
+        System.out.println();
+        System.out.println("inputs=" + inputs + " answered=" + mLatencies.size());
+        System.out.println("timing: " + mTimingModel);
+        if (mLatencies.isEmpty()) return;
+        Collections.sort(mLatencies);
+        System.out.println("input to first command latency: p50=" + percentile(50) +
+                "ms p90=" + percentile(90) + "ms max=" + mLatencies.get(mLatencies.size() - 1) +
+                "ms");
+    }
+
+    private long percentile(int p) {
+        int index = (int) Math.ceil(p / 100.0 * mLatencies.size()) - 1;
+        return mLatencies.get(Math.max(0, index));
+    }
+
+    private static EventTrace load(String path) throws IOException {
+        byte[] bytes;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+            bytes = in.readAllBytes();
+        }
+        // dumpsys output is base64 text, a decoded file starts with the binary magic
+        if (bytes.length > 0 && bytes[0] != 'P') {
+            bytes = Base64.getMimeDecoder().decode(bytes);
+        }
+        return EventTrace.readFrom(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Restores one direction of the model from "DIRECTION:EWMA_MS,SAMPLES,P95_MS,REFERENCE_MS".
+     */
+    private static boolean restoreTiming(MotorTimingModel model, String arg) {
+        int colon = arg.indexOf(':');
+        String[] values = arg.substring(colon + 1).split(",");
+        if (colon < 0 || values.length != 4) return false;
+        int direction;
+        switch (arg.substring(0, colon)) {
+            case "popup":
+                direction = MotorTimingModel.POPUP;
+                break;
+            case "takeback":
+                direction = MotorTimingModel.TAKEBACK;
+                break;
+            default:
+                return false;
+        }
+        try {
+            model.restore(direction, Float.parseFloat(values[0]), Integer.parseInt(values[1]),
+                    Long.parseLong(values[2]), Float.parseFloat(values[3]));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        long travelMs = DEFAULT_TRAVEL_MS;
+        int frequentCount = DEFAULT_FREQUENT_COUNT;
+        MotorTimingModel timingModel = new MotorTimingModel(model -> { });
+        String path = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--travel-ms".equals(args[i]) && i + 1 < args.length) {
+                travelMs = Long.parseLong(args[++i]);
+            } else if ("--frequent-count".equals(args[i]) && i + 1 < args.length) {
+                frequentCount = Integer.parseInt(args[++i]);
+            } else if ("--timing".equals(args[i]) && i + 1 < args.length) {
+                if (!restoreTiming(timingModel, args[++i])) {
+                    System.err.println("Bad --timing " + args[i]);
+                    System.exit(1);
+                }
+            } else {
+                path = args[i];
+            }
+        }
+        if (path == null) {
+            System.err.println("usage: popupcamera-trace-replay [--travel-ms N] " +
+                    "[--frequent-count N] " +
+                    "[--timing DIRECTION:EWMA_MS,SAMPLES,P95_MS,REFERENCE_MS]... <trace file>");
+            System.exit(1);
+        }
+
+        EventTrace trace = load(path);
+        long start = trace.size() > 0 ? trace.getTime(0) : 0;
+        TraceReplay replay = new TraceReplay(start, travelMs, frequentCount, timingModel);
+        replay.run(trace);
+        replay.printSummary(trace.size());
+    }
+}
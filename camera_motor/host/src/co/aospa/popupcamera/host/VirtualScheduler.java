@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.host;
+
+import co.aospa.popupcamera.control.Scheduler;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Scheduler on a virtual clock. Time only moves when the queue is run, so a run is
+ * deterministic and takes no wall time.
+ */
+public class VirtualScheduler implements Scheduler {
+
+    private static final class Task implements Comparable<Task> {
+        final long when;
+        final long seq;
+        final Runnable r;
+
+        Task(long when, long seq, Runnable r) {
+            this.when = when;
+            this.seq = seq;
+            this.r = r;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (when != other.when) return Long.compare(when, other.when);
+            return Long.compare(seq, other.seq);
+        }
+    }
+
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>();
+    private long mNow;
+    private long mSeq;
+
+    public VirtualScheduler(long start) {
+        mNow = start;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public void post(Runnable r) {
+        postDelayed(r, 0);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMillis) {
+        mQueue.add(new Task(mNow + Math.max(0, delayMillis), mSeq++, r));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable r) {
+        Iterator<Task> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().r == r) it.remove();
+        }
+    }
+
+    /**
+     * Runs every task due up to and including the given time, then sets the clock to it.
+     */
+    public void runUntil(long time) {
+        while (!mQueue.isEmpty() && mQueue.peek().when <= time) {
+            Task task = mQueue.poll();
+            mNow = Math.max(mNow, task.when);
+            task.r.run();
+        }
+        mNow = Math.max(mNow, time);
+    }
+
+    public boolean isIdle() {
+        return mQueue.isEmpty();
+    }
+}
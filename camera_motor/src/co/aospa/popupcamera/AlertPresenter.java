@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.Button;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Shows popup camera alerts one at a time in a single keyguard dialog that is created
+ * once and reused.
+ *
+ * Alerts may be posted from any thread. They are queued by priority and an alert of a
+ * kind that is already queued replaces it, so repeated failures do not stack dialogs.
+ * A higher priority alert takes over the dialog from a lower priority one, which is
+ * shown again afterwards. Button actions only run what the caller handed in; all motor
+ * decisions are made before the alert is posted.
+ */
+public class AlertPresenter {
+
+    private static final String TAG = "AlertPresenter";
+    private static final boolean DEBUG = false;
+
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    public static final int KIND_FREQUENT = 0;
+    public static final int KIND_CALIBRATION_RESULT = 1;
+    public static final int KIND_ERROR = 2;
+
+    private static final long TICK_MS = 1000;
+
+    public static final class Alert {
+        final int kind;
+        final int priority;
+        final int messageResId;
+        final int positiveResId;
+        final int negativeResId;
+        final Runnable onPositive;
+        final int countdownSeconds;
+        long seq;
+
+        /**
+         * @param negativeResId label of the negative button, or 0 for none
+         * @param onPositive run when the positive button is tapped, may be null
+         * @param countdownSeconds how long the positive button stays disabled
+         */
+        public Alert(int kind, int priority, int messageResId, int positiveResId,
+                int negativeResId, Runnable onPositive, int countdownSeconds) {
+            this.kind = kind;
+            this.priority = priority;
+            this.messageResId = messageResId;
+            this.positiveResId = positiveResId;
+            this.negativeResId = negativeResId;
+            this.onPositive = onPositive;
+            this.countdownSeconds = countdownSeconds;
+        }
+
+        boolean sameAs(Alert other) {
+            return kind == other.kind && messageResId == other.messageResId &&
+                    positiveResId == other.positiveResId && negativeResId == other.negativeResId;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the main thread
+    private final PriorityQueue<Alert> mQueue = new PriorityQueue<>((a, b) ->
+            a.priority != b.priority ? b.priority - a.priority : Long.compare(a.seq, b.seq));
+    private long mSeq;
+    private AlertDialog mDialog;
+    private Alert mShowing;
+    private int mCountdown;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (mShowing == null) return;
+            updatePositiveButton(--mCountdown);
+            if (mCountdown > 0) {
+                mHandler.postDelayed(this, TICK_MS);
+            }
+        }
+    };
+
+    public AlertPresenter(Context context) {
+        mContext = context;
+    }
+
+    public void show(Alert alert) {
+        mHandler.post(() -> enqueue(alert));
+    }
+
+    private void enqueue(Alert alert) {
+        if (mShowing != null && mShowing.sameAs(alert)) {
+            if (DEBUG) Log.d(TAG, "Dropping duplicate of the shown alert");
+            return;
+        }
+        Iterator<Alert> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().kind == alert.kind) {
+                it.remove();
+            }
+        }
+        alert.seq = mSeq++;
+        mQueue.add(alert);
+
+        if (mShowing == null) {
+            showNext();
+        } else if (alert.priority > mShowing.priority) {
+            requeue(mShowing);
+            // Dismissing shows the next queued alert, which is this one
+            mDialog.dismiss();
+        }
+    }
+
+    /**
+     * Puts a preempted alert back in the queue, ahead of later alerts of its priority,
+     * unless a newer alert of its kind has replaced it.
+     */
+    private void requeue(Alert alert) {
+        for (Alert queued : mQueue) {
+            if (queued.kind == alert.kind) return;
+        }
+        mQueue.add(alert);
+    }
+
+    private void showNext() {
+        mShowing = mQueue.poll();
+        if (mShowing == null) return;
+
+        AlertDialog dialog = getDialog();
+        Resources res = mContext.getResources();
+        dialog.setMessage(res.getString(mShowing.messageResId));
+        dialog.show();
+
+        Button negative = dialog.getButton(DialogInterface.BUTTON_NEGATIVE);
+        if (mShowing.negativeResId != 0) {
+            negative.setText(res.getString(mShowing.negativeResId));
+            negative.setVisibility(View.VISIBLE);
+        } else {
+            negative.setVisibility(View.GONE);
+        }
+        mCountdown = mShowing.countdownSeconds;
+        updatePositiveButton(mCountdown);
+        if (mCountdown > 0) {
+            mHandler.postDelayed(mTick, TICK_MS);
+        }
+    }
+
+    private void updatePositiveButton(int countdown) {
+        Button positive = mDialog.getButton(DialogInterface.BUTTON_POSITIVE);
+        String label = mContext.getResources().getString(mShowing.positiveResId);
+        positive.setEnabled(countdown <= 0);
+        positive.setText(countdown > 0 ? label + " (" + countdown + ")" : label);
+    }
+
+    private AlertDialog getDialog() {
+        if (mDialog != null) return mDialog;
+        Resources res = mContext.getResources();
+        // Both buttons are created here and relabelled per alert
+        mDialog = new AlertDialog.Builder(mContext, R.style.SystemAlertDialogTheme)
+                .setTitle(res.getString(R.string.popup_camera_tip))
+                .setMessage("")
+                .setPositiveButton(android.R.string.ok, (dialog, which) -> {
+                    Alert alert = mShowing;
+                    if (alert != null && alert.onPositive != null) {
+                        alert.onPositive.run();
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .create();
+        mDialog.getWindow().setType(WindowManager.LayoutParams.TYPE_KEYGUARD_DIALOG);
+        mDialog.setCancelable(false);
+        mDialog.setCanceledOnTouchOutside(false);
+        mDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialogInterface) {
+                mHandler.removeCallbacks(mTick);
+                mShowing = null;
+                showNext();
+            }
+        });
+        return mDialog;
+    }
+}
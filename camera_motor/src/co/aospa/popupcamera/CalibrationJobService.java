@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Asks PopupCameraService to recalibrate the motor while the device is idle and
+ * charging, so calibration never competes with the camera being used.
+ */
+public class CalibrationJobService extends JobService {
+
+    private static final String TAG = "CalibrationJobService";
+    private static final boolean DEBUG = false;
+
+    private static final int JOB_ID = 0x70637031;
+
+    public static void schedule(Context context) {
+        JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        if (scheduler.getPendingJob(JOB_ID) != null) return;
+        if (DEBUG) Log.d(TAG, "Scheduling idle calibration");
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CalibrationJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build());
+    }
+
+    public static void cancel(Context context) {
+        context.getSystemService(JobScheduler.class).cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (DEBUG) Log.d(TAG, "Starting idle calibration");
+        // Called directly, the exported service must not offer calibration to other apps
+        PopupCameraService.requestIdleCalibration();
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
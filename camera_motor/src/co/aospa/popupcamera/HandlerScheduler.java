@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import co.aospa.popupcamera.control.Scheduler;
+
+public class HandlerScheduler implements Scheduler {
+
+    private final Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void post(Runnable r) {
+        mHandler.post(r);
+    }
+
+    @Override
+    public void postDelayed(Runnable r, long delayMillis) {
+        mHandler.postDelayed(r, delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable r) {
+        mHandler.removeCallbacks(r);
+    }
+}
@@ -17,33 +17,44 @@
 
 package co.aospa.popupcamera;
 
-import android.app.AlertDialog;
+import android.Manifest;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
-import android.content.res.Resources;
-import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.os.CountDownTimer;
 import android.os.IBinder;
 import android.os.Handler;
+import android.os.PowerManager;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.Log;
-import android.view.WindowManager;
-import android.widget.Button;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Base64;
 import java.util.List;
 
 import co.aospa.popupcamera.R;
+import co.aospa.popupcamera.control.CalibrationPolicy;
+import co.aospa.popupcamera.control.EventTrace;
+import co.aospa.popupcamera.control.MotorController;
+import co.aospa.popupcamera.control.MotorHal;
+import co.aospa.popupcamera.control.MotorHalConnection;
+import co.aospa.popupcamera.control.MotorTimingModel;
 import co.aospa.popupcamera.utils.FileUtils;
-import co.aospa.popupcamera.utils.LimitSizeList;
+import co.aospa.popupcamera.utils.OsPollableFiles;
+import co.aospa.popupcamera.utils.SysfsWatcher;
 
 import vendor.xiaomi.hardware.motor.V1_0.IMotor;
 import vendor.xiaomi.hardware.motor.V1_0.IMotorCallback;
@@ -55,13 +66,10 @@ public class PopupCameraService extends Service {
     private static final boolean DEBUG = false;
     private static final String closeCameraState = "0";
     private static final String openCameraState = "1";
-    private static String mCameraState = "-1";
 
-    private IMotor mMotor = null;
-    private IMotorCallback mMotorStatusCallback;
-    private final Object mLock = new Object();
-    private boolean mMotorBusy = false;
-    private boolean mMotorCalibrating = false;
+    private final IMotorCallback mMotorStatusCallback = new MotorStatusCallback();
+    private MotorHalConnection mMotorConnection;
+    private MotorController mController;
 
     private SensorManager mSensorManager;
     private Sensor mFreeFallSensor;
@@ -72,47 +80,318 @@ public class PopupCameraService extends Service {
 
     private static Handler mHandler = new Handler();
 
-    // Motor status
-    private static final int MOTOR_STATUS_POPUP_OK = 11;
-    private static final int MOTOR_STATUS_POPUP_JAMMED = 12;
-    private static final int MOTOR_STATUS_TAKEBACK_OK = 13;
-    private static final int MOTOR_STATUS_TAKEBACK_JAMMED = 14;
-    private static final int MOTOR_STATUS_PRESSED = 15;
-    private static final int MOTOR_STATUS_CALIB_OK = 17;
-    private static final int MOTOR_STATUS_CALIB_ERROR = 18;
-    private static final int MOTOR_STATUS_REQUEST_CALIB = 19;
-
-    // Error dialog
-    private boolean mDialogShowing;
-    private int mPopupFailedRecord = 0;
-    private int mTakebackFailedRecord = 0;
-    private static final int POPUP_FAILED_MAX_TRIES = 3;
-    private static final int TAKEBACK_FAILED_MAX_TRIES = 3;
+    // Alerts
+    private AlertPresenter mAlertPresenter;
+    private final Runnable mCalibrate = () -> mHandler.post(() -> mController.calibrate());
 
     // Frequent dialog
+    private static final int FREQUENT_DIALOG_COUNTDOWN_S = 5;
     private static final int FREQUENT_TRIGGER_COUNT = SystemProperties.getInt("persist.sys.popup.frequent_times", 10);
-    private LimitSizeList<Long> mPopupRecordList;
 
     // Proximity sensor
     private ProximitySensor mProximitySensor;
-    private boolean mProximityNear;
-    private boolean mShouldTryUpdateMotor;
+
+    // Sensor accounting
+    private final SensorStats mProximityStats = new SensorStats("proximity");
+    private final SensorStats mFreeFallStats = new SensorStats("freeFall");
+
+    // Input trace for offline replay
+    private static final int TRACE_CAPACITY = 4096;
+    private final EventTrace mEventTrace = new EventTrace(TRACE_CAPACITY);
+
+    // Idle calibration
+    private static final String CALIBRATION_PREFS = "calibration";
+    private static final long CALIBRATION_WAKELOCK_MS = 10000;
+    // Moves only feed the dump, so they are saved in batches and when the screen goes off
+    private static final int CALIBRATION_MOVES_PERSIST_INTERVAL = 32;
+    private CalibrationPolicy mCalibrationPolicy;
+    // The running service, reached by the idle calibration job in the same process rather
+    // than through the exported service. Only touched on the main thread.
+    private static PopupCameraService sService;
+    private boolean mCalibrationDue;
+    // What the prefs hold, to write only the keys that changed
+    private int mPersistedJams;
+    private int mPersistedNearMisses;
+    private int mPersistedMoves;
+    private final long[] mPersistedBaselineMs = new long[2];
+    private PowerManager.WakeLock mCalibrationWakeLock;
+
+    // Learned motor timing
+    private static final String TIMING_PREFS = "motor_timing";
+    private static final String[] TIMING_DIRECTIONS = { "popup", "takeback" };
+    // Moves learned before the model is saved; it is also saved when the screen goes off
+    private static final int TIMING_PERSIST_INTERVAL = 16;
+    private MotorTimingModel mTimingModel;
+    private final boolean[] mTimingSlow = new boolean[2];
+    private final boolean[] mTimingTrained = new boolean[2];
+    private int mTimingUnsavedMoves;
+
+    // Applied LED brightness. The leds class does not notify, so the files are only
+    // watched, and re-read on the timer, while the LEDs are requested on.
+    private static final long LED_WATCH_INTERVAL_MS = 2000;
+    private final SysfsWatcher mLedWatcher =
+            new SysfsWatcher(new OsPollableFiles(), LED_WATCH_INTERVAL_MS);
+    private volatile boolean mLedsRequested;
+    private volatile int mGreenBrightness = -1;
+    private volatile int mBlueBrightness = -1;
+    private final SysfsWatcher.Listener mLedListener = (path, value, length) -> {
+        int brightness = parseBrightness(value, length);
+        if (GREEN_LED_PATH.equals(path)) {
+            mGreenBrightness = brightness;
+        } else {
+            mBlueBrightness = brightness;
+        }
+    };
+
+    // Motor readiness for bound camera apps
+    private static final long AWAIT_READY_MAX_MS = 5000;
+    private final Object mMotorStateLock = new Object();
+    private volatile int mMotorState = MotorController.MOTOR_STATE_UNKNOWN;
+    private final RemoteCallbackList<IPopupCameraCallback> mCallbacks = new RemoteCallbackList<>();
 
     @Override
     public void onCreate() {
         mSensorManager = getSystemService(SensorManager.class);
         mFreeFallSensor = mSensorManager.getDefaultSensor(FREE_FALL_SENSOR_ID);
-        mProximitySensor = new ProximitySensor(this, mSensorManager, mProximityListener);
-        mPopupRecordList = new LimitSizeList<>(FREQUENT_TRIGGER_COUNT);
+        mProximitySensor = new ProximitySensor(this, mSensorManager, mProximityListener,
+                mProximityStats);
+        mAlertPresenter = new AlertPresenter(this);
         registerReceiver();
+        HandlerScheduler scheduler = new HandlerScheduler(mHandler);
+        mMotorConnection = new MotorHalConnection(this::connectMotor, scheduler);
+        mMotorConnection.connect();
+        mController = new MotorController(mMotorConnection, scheduler, mControllerHost,
+                FREQUENT_TRIGGER_COUNT);
+        mController.setTrace(mEventTrace);
+        mCalibrationPolicy = new CalibrationPolicy(this::onCalibrationStateChanged);
+        SharedPreferences prefs = getSharedPreferences(CALIBRATION_PREFS, MODE_PRIVATE);
+        mCalibrationPolicy.restore(prefs.getInt("jams", 0), prefs.getInt("near_misses", 0),
+                prefs.getInt("moves", 0),
+                prefs.getLong(TIMING_DIRECTIONS[MotorTimingModel.POPUP] + "_baseline_ms", 0),
+                prefs.getLong(TIMING_DIRECTIONS[MotorTimingModel.TAKEBACK] + "_baseline_ms", 0));
+        mPersistedJams = mCalibrationPolicy.getJams();
+        mPersistedNearMisses = mCalibrationPolicy.getNearMisses();
+        mPersistedMoves = mCalibrationPolicy.getMoves();
+        for (int d = MotorTimingModel.POPUP; d <= MotorTimingModel.TAKEBACK; d++) {
+            mPersistedBaselineMs[d] = mCalibrationPolicy.getBaselineMs(d);
+        }
+        if (prefs.contains("baseline_ms")) {
+            // Single baseline written before popup and takeback were kept apart
+            prefs.edit().remove("baseline_ms").apply();
+        }
+        mController.setCalibrationPolicy(mCalibrationPolicy);
+        mTimingModel = new MotorTimingModel(this::onTimingModelChanged);
+        prefs = getSharedPreferences(TIMING_PREFS, MODE_PRIVATE);
+        for (int d = MotorTimingModel.POPUP; d <= MotorTimingModel.TAKEBACK; d++) {
+            String name = TIMING_DIRECTIONS[d];
+            mTimingModel.restore(d, prefs.getFloat(name + "_ewma_ms", 0),
+                    prefs.getInt(name + "_samples", 0), prefs.getLong(name + "_p95_ms", 0),
+                    prefs.getFloat(name + "_reference_ms", 0));
+            mTimingTrained[d] = mTimingModel.isTrained(d);
+        }
+        mController.setTimingModel(mTimingModel);
+        mController.setStateListener(this::onMotorStateChanged);
+        mController.refreshMotorState();
+        mCalibrationDue = mCalibrationPolicy.isCalibrationDue();
+        if (mCalibrationDue) {
+            CalibrationJobService.schedule(this);
+        }
+        mLedWatcher.start();
+        sService = this;
+        mCalibrationWakeLock = getSystemService(PowerManager.class)
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + ":calibration");
+    }
+
+    /**
+     * Fetches the motor HAL and registers the status callback and a death notification on
+     * it; a restarted HAL knows nothing of the previous registration.
+     */
+    private MotorHal connectMotor(Runnable onDied) {
         try {
-            mMotor = IMotor.getService();
-            mMotorStatusCallback = new MotorStatusCallback();
-            mMotor.setMotorCallback(mMotorStatusCallback);
-        } catch(Exception e) {
+            IMotor motor = IMotor.getService();
+            if (motor == null) {
+                return null;
+            }
+            motor.linkToDeath(cookie -> onDied.run(), 0);
+            motor.setMotorCallback(mMotorStatusCallback);
+            return new VendorMotorHal(motor, onDied);
+        } catch (RemoteException | RuntimeException e) {
+            Log.e(TAG, "Could not connect to the motor HAL", e);
+            return null;
         }
     }
 
+    private void onCalibrationStateChanged(CalibrationPolicy policy) {
+        // Called after every completed move, so stay off binder and disk unless needed
+        if (policy.isCalibrationDue() != mCalibrationDue) {
+            mCalibrationDue = policy.isCalibrationDue();
+            if (mCalibrationDue) {
+                CalibrationJobService.schedule(this);
+            } else {
+                CalibrationJobService.cancel(this);
+            }
+        }
+        persistCalibrationState(false);
+    }
+
+    /**
+     * Writes the calibration counters and baselines that differ from the saved ones in a
+     * single edit. The move count alone is only written every
+     * CALIBRATION_MOVES_PERSIST_INTERVAL moves, unless flushing.
+     */
+    private void persistCalibrationState(boolean flush) {
+        CalibrationPolicy policy = mCalibrationPolicy;
+        SharedPreferences.Editor editor = null;
+        if (policy.getJams() != mPersistedJams) {
+            mPersistedJams = policy.getJams();
+            editor = editCalibrationPrefs(editor).putInt("jams", mPersistedJams);
+        }
+        if (policy.getNearMisses() != mPersistedNearMisses) {
+            mPersistedNearMisses = policy.getNearMisses();
+            editor = editCalibrationPrefs(editor).putInt("near_misses", mPersistedNearMisses);
+        }
+        for (int d = MotorTimingModel.POPUP; d <= MotorTimingModel.TAKEBACK; d++) {
+            if (policy.getBaselineMs(d) != mPersistedBaselineMs[d]) {
+                mPersistedBaselineMs[d] = policy.getBaselineMs(d);
+                editor = editCalibrationPrefs(editor).putLong(
+                        TIMING_DIRECTIONS[d] + "_baseline_ms", mPersistedBaselineMs[d]);
+            }
+        }
+        int moves = policy.getMoves();
+        if (moves != mPersistedMoves && (editor != null || flush || moves < mPersistedMoves ||
+                moves - mPersistedMoves >= CALIBRATION_MOVES_PERSIST_INTERVAL)) {
+            mPersistedMoves = moves;
+            editor = editCalibrationPrefs(editor).putInt("moves", moves);
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+    }
+
+    private SharedPreferences.Editor editCalibrationPrefs(SharedPreferences.Editor editor) {
+        return editor != null ? editor :
+                getSharedPreferences(CALIBRATION_PREFS, MODE_PRIVATE).edit();
+    }
+
+    private void onMotorStateChanged(int state) {
+        if (DEBUG) Log.d(TAG, "Motor state: " + state);
+        synchronized (mMotorStateLock) {
+            mMotorState = state;
+            mMotorStateLock.notifyAll();
+        }
+        int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            try {
+                mCallbacks.getBroadcastItem(i).onMotorStateChanged(state);
+            } catch (RemoteException e) {
+                // The list drops dead callbacks on its own
+            }
+        }
+        mCallbacks.finishBroadcast();
+    }
+
+    private final IPopupCamera.Stub mBinder = new IPopupCamera.Stub() {
+        @Override
+        public int getMotorState() {
+            return mMotorState;
+        }
+
+        @Override
+        public boolean awaitReady(long timeoutMs) {
+            long deadline = SystemClock.uptimeMillis() + Math.min(timeoutMs, AWAIT_READY_MAX_MS);
+            synchronized (mMotorStateLock) {
+                while (mMotorState != MotorController.MOTOR_STATE_UP) {
+                    long remaining = deadline - SystemClock.uptimeMillis();
+                    if (remaining <= 0 || mMotorState == MotorController.MOTOR_STATE_ERROR) {
+                        return false;
+                    }
+                    try {
+                        mMotorStateLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void requestPopup() {
+            enforceCallingOrSelfPermission(Manifest.permission.CAMERA, TAG);
+            mHandler.post(() -> mController.onPopupHint());
+        }
+
+        @Override
+        public void registerCallback(IPopupCameraCallback callback) {
+            mCallbacks.register(callback);
+        }
+
+        @Override
+        public void unregisterCallback(IPopupCameraCallback callback) {
+            mCallbacks.unregister(callback);
+        }
+    };
+
+    private void onTimingModelChanged(MotorTimingModel model) {
+        boolean trained = false;
+        for (int d = MotorTimingModel.POPUP; d <= MotorTimingModel.TAKEBACK; d++) {
+            if (model.isSlow(d) != mTimingSlow[d]) {
+                mTimingSlow[d] = model.isSlow(d);
+                if (mTimingSlow[d]) {
+                    Log.w(TAG, "Motor " + TIMING_DIRECTIONS[d] + " is getting slow: " + model);
+                }
+            }
+            if (model.isTrained(d) != mTimingTrained[d]) {
+                mTimingTrained[d] = model.isTrained(d);
+                trained = true;
+            }
+        }
+        // Save right away once a direction is trained, so its reference survives a restart
+        if (++mTimingUnsavedMoves >= TIMING_PERSIST_INTERVAL || trained) {
+            persistTimingModel();
+        }
+    }
+
+    private void persistTimingModel() {
+        if (mTimingUnsavedMoves == 0) return;
+        mTimingUnsavedMoves = 0;
+        SharedPreferences.Editor editor = getSharedPreferences(TIMING_PREFS, MODE_PRIVATE).edit();
+        for (int d = MotorTimingModel.POPUP; d <= MotorTimingModel.TAKEBACK; d++) {
+            String name = TIMING_DIRECTIONS[d];
+            editor.putFloat(name + "_ewma_ms", mTimingModel.getEwmaMs(d))
+                    .putInt(name + "_samples", mTimingModel.getSamples(d))
+                    .putLong(name + "_p95_ms", mTimingModel.getP95Ms(d))
+                    .putFloat(name + "_reference_ms", mTimingModel.getReferenceMs(d));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Runs a due calibration if the device is still idle. Only for CalibrationJobService.
+     */
+    static void requestIdleCalibration() {
+        mHandler.post(() -> {
+            if (sService != null) {
+                sService.idleCalibrate();
+            } else if (DEBUG) {
+                Log.d(TAG, "Service not running, skipping idle calibration");
+            }
+        });
+    }
+
+    private void idleCalibrate() {
+        if (!mCalibrationPolicy.isCalibrationDue()) return;
+        if (getSystemService(PowerManager.class).isInteractive() ||
+                !mController.calibrateInBackground()) {
+            if (DEBUG) Log.d(TAG, "Camera may be in use, deferring calibration");
+            CalibrationJobService.schedule(this);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Idle calibration started: " + mCalibrationPolicy);
+        mCalibrationWakeLock.acquire(CALIBRATION_WAKELOCK_MS);
+    }
+
     private void setProximitySensor(boolean enabled) {
         if (mProximitySensor == null) return;
         if (enabled) {
@@ -127,65 +406,63 @@ public class PopupCameraService extends Service {
     private ProximitySensor.ProximityListener mProximityListener =
             new ProximitySensor.ProximityListener() {
         public void onEvent(boolean isNear, long timestamp) {
-            mProximityNear = isNear;
-            if (DEBUG) Log.d(TAG, "Proximity sensor: isNear " + mProximityNear);
-            if (!mProximityNear && mShouldTryUpdateMotor){
-                if (DEBUG) Log.d(TAG, "Proximity sensor: mShouldTryUpdateMotor " + mShouldTryUpdateMotor);
-                mShouldTryUpdateMotor = false;
-                updateMotor();
+            if (DEBUG) Log.d(TAG, "Proximity sensor: isNear " + isNear);
+            if (mController.onProximityChanged(isNear)) {
+                if (DEBUG) Log.d(TAG, "Proximity sensor: released pending motor update");
+                mProximityStats.onAction();
             }
         }
         public void onInit(boolean isNear, long timestamp) {
             if (DEBUG) Log.d(TAG, "Proximity sensor init : " + isNear);
-            mProximityNear = isNear;
+            mController.onProximityInit(isNear);
         }
     };
 
-    private void checkFrequentOperate() {
-        mPopupRecordList.add(Long.valueOf(SystemClock.elapsedRealtime()));
-        if (mPopupRecordList.isFull() && ((Long) mPopupRecordList.getLast()).longValue() - ((Long) mPopupRecordList.getFirst()).longValue() < 20000) {
-            showFrequentOperateDialog();
+    private final MotorController.Host mControllerHost = new MotorController.Host() {
+        @Override
+        public void setLedsOn(boolean on) {
+            FileUtils.writeLine(GREEN_LED_PATH, on ? "255" : "0");
+            FileUtils.writeLine(BLUE_LED_PATH, on ? "255" : "0");
+            if (on && !mLedsRequested) {
+                mLedWatcher.watch(GREEN_LED_PATH, mLedListener);
+                mLedWatcher.watch(BLUE_LED_PATH, mLedListener);
+            } else if (!on && mLedsRequested) {
+                mLedWatcher.unwatch(GREEN_LED_PATH, mLedListener);
+                mLedWatcher.unwatch(BLUE_LED_PATH, mLedListener);
+            }
+            mLedsRequested = on;
         }
-    }
 
-    private void showFrequentOperateDialog(){
-        if (mDialogShowing){
-            return;
+        @Override
+        public void setFreeFallSensor(boolean enabled) {
+            PopupCameraService.this.setFreeFallSensor(enabled);
         }
-        mDialogShowing = true;
-        mHandler.post(() -> {
-            Resources res = getResources();
-            AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this, R.style.SystemAlertDialogTheme)
-                    .setTitle(res.getString(R.string.popup_camera_tip))
-                    .setMessage(res.getString(R.string.stop_operate_camera_frequently))
-                    .setPositiveButton(res.getString(android.R.string.ok) + " (5)", null);
-            AlertDialog alertDialog = alertDialogBuilder.create();
-            alertDialog.getWindow().setType(WindowManager.LayoutParams.TYPE_KEYGUARD_DIALOG);
-            alertDialog.setCancelable(false);
-            alertDialog.setCanceledOnTouchOutside(false);
-            alertDialog.show();
-            alertDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
-                @Override
-                public void onDismiss(DialogInterface dialogInterface) {
-                    mDialogShowing = false;
-                }
-            });
-            final Button btn = alertDialog.getButton(DialogInterface.BUTTON_POSITIVE);
-            btn.setEnabled(false);
-            CountDownTimer countDownTimer = new CountDownTimer(6000, 1000) {
-                @Override
-                public void onTick(long millisUntilFinished) {
-                    btn.setText(res.getString(android.R.string.ok) + " (" + Long.valueOf(millisUntilFinished / 1000) + ")");
-                }
 
-                @Override
-                public void onFinish() {
-                    btn.setEnabled(true);
-                    btn.setText(res.getString(android.R.string.ok));
-                }
-            };
-            countDownTimer.start();
-        });
+        @Override
+        public void goBackHome() {
+            PopupCameraService.this.goBackHome();
+        }
+
+        @Override
+        public void showFrequentOperateDialog() {
+            PopupCameraService.this.showFrequentOperateDialog();
+        }
+
+        @Override
+        public void showCalibrationResult(int status) {
+            PopupCameraService.this.showCalibrationResult(status);
+        }
+
+        @Override
+        public void handleError(int status) {
+            PopupCameraService.this.handleError(status);
+        }
+    };
+
+    private void showFrequentOperateDialog() {
+        mAlertPresenter.show(new AlertPresenter.Alert(AlertPresenter.KIND_FREQUENT,
+                AlertPresenter.PRIORITY_LOW, R.string.stop_operate_camera_frequently,
+                android.R.string.ok, 0, null, FREQUENT_DIALOG_COUNTDOWN_S));
     }
 
     private final class MotorStatusCallback extends IMotorCallback.Stub {
@@ -197,36 +474,11 @@ public class PopupCameraService extends Service {
             int status = event.vaalue;
             int cookie = event.cookie;
             if (DEBUG) Log.d(TAG, "onNotify: cookie=" + cookie + ",status=" + status);
-            synchronized (mLock) {
-                if (status == MOTOR_STATUS_CALIB_OK || status == MOTOR_STATUS_CALIB_ERROR) {
-                    mMotorCalibrating = false;
-                    showCalibrationResult(status);
-                }else if (status == MOTOR_STATUS_PRESSED) {
-                    forceTakeback();
-                    goBackHome();
-                }else if (status == MOTOR_STATUS_POPUP_JAMMED || status == MOTOR_STATUS_TAKEBACK_JAMMED) {
-                    handleError(status);
-                }
-            }
-        }
-    }
-
-    private void calibrateMotor() {
-        synchronized (mLock) {
-            if (mMotorCalibrating || mMotor == null) return;
-            try {
-                mMotorCalibrating = true;
-                mMotor.calibration();
-            } catch (Exception e) {
-            }
+            // Handled on the main thread like every other controller input
+            mHandler.post(() -> mController.onMotorEvent(status));
         }
     }
 
-    private void forceTakeback(){
-        mCameraState = closeCameraState;
-        updateMotor();
-    }
-
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (DEBUG) Log.d(TAG, "Starting service");
@@ -239,12 +491,66 @@ public class PopupCameraService extends Service {
         if (DEBUG) Log.d(TAG, "Destroying service");
         setProximitySensor(false);
         unregisterReceiver(mIntentReceiver);
+        if (sService == this) {
+            sService = null;
+        }
+        mLedWatcher.stop();
+        persistCalibrationState(true);
+        persistTimingModel();
         super.onDestroy();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (args != null && args.length > 0 && "trace".equals(args[0])) {
+            // Base64 encoded input trace for the host side replay tool
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                mEventTrace.writeTo(out);
+            } catch (IOException e) {
+                pw.println("Could not write trace: " + e);
+                return;
+            }
+            pw.println(Base64.getEncoder().encodeToString(out.toByteArray()));
+            return;
+        }
+        pw.println("Inputs traced: " + mEventTrace.size());
+        pw.println("Calibration: " + mCalibrationPolicy);
+        pw.println("Timing: " + mTimingModel);
+        StringBuilder replayArgs = new StringBuilder();
+        for (int d = MotorTimingModel.POPUP; d <= MotorTimingModel.TAKEBACK; d++) {
+            replayArgs.append(" --timing ").append(TIMING_DIRECTIONS[d]).append(':')
+                    .append(mTimingModel.getEwmaMs(d)).append(',')
+                    .append(mTimingModel.getSamples(d)).append(',')
+                    .append(mTimingModel.getP95Ms(d)).append(',')
+                    .append(mTimingModel.getReferenceMs(d));
+        }
+        pw.println("Timing replay options:" + replayArgs);
+        pw.println("Motor state: " + mMotorState + " callbacks=" +
+                mCallbacks.getRegisteredCallbackCount());
+        pw.println("Motor HAL: connected=" + mMotorConnection.isConnected() + " deaths=" +
+                mMotorConnection.getDeathCount());
+        pw.println("LEDs: requested=" + (mLedsRequested ? "on" : "off") +
+                " applied while on: green=" + mGreenBrightness + " blue=" + mBlueBrightness);
+        mLedWatcher.dump(pw);
+        pw.println("Sensors:");
+        mProximityStats.dump(pw);
+        mFreeFallStats.dump(pw);
+    }
+
+    private static int parseBrightness(byte[] value, int length) {
+        int brightness = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) break;
+            brightness = brightness * 10 + digit;
+        }
+        return brightness;
     }
 
     private void registerReceiver() {
@@ -262,180 +568,71 @@ public class PopupCameraService extends Service {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
             if (android.content.Intent.ACTION_CAMERA_STATUS_CHANGED.equals(action)) {
-               mCameraState = intent.getExtras().getString(android.content.Intent.EXTRA_CAMERA_STATE);
-               updateMotor();
+                String state = intent.getExtras().getString(android.content.Intent.EXTRA_CAMERA_STATE);
+                mController.onCameraStateChanged(openCameraState.equals(state) ?
+                        MotorController.CAMERA_STATE_OPEN : closeCameraState.equals(state) ?
+                        MotorController.CAMERA_STATE_CLOSED : MotorController.CAMERA_STATE_UNKNOWN);
+            } else if ("android.intent.action.SCREEN_ON".equals(action)) {
+                mProximityStats.setScreenOn(true);
+                mFreeFallStats.setScreenOn(true);
+                mController.onScreenOn();
             } else if ("android.intent.action.SCREEN_OFF".equals(action)) {
-                if (mCameraState.equals(openCameraState)){
-                    forceTakeback();
-                }
+                mProximityStats.setScreenOn(false);
+                mFreeFallStats.setScreenOn(false);
+                mController.onScreenOff();
+                persistCalibrationState(true);
+                persistTimingModel();
             }
         }
     };
 
-    private void updateMotor() {
-        final Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                if (mMotor == null) return;
-                mMotorBusy = true;
-                try {
-                    int status = mMotor.getMotorStatus();
-                    if (DEBUG) Log.d(TAG, "updateMotor: status=" + status);
-                    if (mMotorCalibrating){
-                        mMotorBusy = false;
-                        goBackHome();
-                        showCalibrationResult(-1);
-                        return;
-                    }else if (mCameraState.equals(openCameraState) && (status == MOTOR_STATUS_TAKEBACK_OK || status == MOTOR_STATUS_CALIB_OK)) {
-                        mTakebackFailedRecord = 0;
-                        if (!mProximityNear){
-                            lightUp();
-                            mMotor.popupMotor(1);
-                            mSensorManager.registerListener(mFreeFallListener, mFreeFallSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                            checkFrequentOperate();
-                        }else{
-                            mShouldTryUpdateMotor = true;
-                        }
-                    } else if (mCameraState.equals(closeCameraState) && (status == MOTOR_STATUS_POPUP_OK || status == MOTOR_STATUS_CALIB_OK)) {
-                        mPopupFailedRecord = 0;
-                        lightUp();
-                        mMotor.takebackMotor(1);
-                        mSensorManager.unregisterListener(mFreeFallListener, mFreeFallSensor);
-                        checkFrequentOperate();
-                    }else{
-                        mMotorBusy = false;
-                        if (status == MOTOR_STATUS_REQUEST_CALIB || status == MOTOR_STATUS_POPUP_JAMMED || status == MOTOR_STATUS_TAKEBACK_JAMMED || status == MOTOR_STATUS_CALIB_ERROR){
-                            handleError(status);
-                        }
-                        return;
-                    }
-                } catch(Exception e) {
-                }
-                mHandler.postDelayed(() -> { mMotorBusy = false; }, 1200);
-            }
-        };
-        if (mMotorBusy){
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (mMotorBusy){
-                        mHandler.postDelayed(this, 100);
-                    }else{
-                        mHandler.post(r);
-                    }
-                }
-            }, 100);
-        }else{
-            mHandler.post(r);
-        }
-    }
-
-    private void showCalibrationResult(int status){
-        if (mDialogShowing){
-            return;
-        }
-        mDialogShowing = true;
-        mHandler.post(() -> {
-            Resources res = getResources();
-            int dialogMessageResId = mMotorCalibrating ? R.string.popup_camera_calibrate_running : (status == MOTOR_STATUS_CALIB_OK ?
-                    R.string.popup_camera_calibrate_success :
-                    R.string.popup_camera_calibrate_failed);
-            AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this, R.style.SystemAlertDialogTheme);
-            alertDialogBuilder.setMessage(res.getString(dialogMessageResId));
-            alertDialogBuilder.setPositiveButton(android.R.string.ok, null);
-            AlertDialog alertDialog = alertDialogBuilder.create();
-            alertDialog.getWindow().setType(WindowManager.LayoutParams.TYPE_KEYGUARD_DIALOG);
-            alertDialog.setCancelable(false);
-            alertDialog.setCanceledOnTouchOutside(false);
-            alertDialog.show();
-            alertDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
-                @Override
-                public void onDismiss(DialogInterface dialogInterface) {
-                    mDialogShowing = false;
-                }
-            });
-        });
+    private void showCalibrationResult(int status) {
+        int messageResId = mController.isMotorCalibrating() ?
+                R.string.popup_camera_calibrate_running :
+                (status == MotorController.MOTOR_STATUS_CALIB_OK ?
+                R.string.popup_camera_calibrate_success :
+                R.string.popup_camera_calibrate_failed);
+        mAlertPresenter.show(new AlertPresenter.Alert(AlertPresenter.KIND_CALIBRATION_RESULT,
+                AlertPresenter.PRIORITY_NORMAL, messageResId, android.R.string.ok, 0, null, 0));
     }
 
-    private void handleError(int status){
-        if (mDialogShowing){
-            return;
-        }
-        mDialogShowing = true;
+    private void handleError(int status) {
+        // Decide and retry right away, the dialog only reports what was done
+        boolean needsCalib = mController.onError(status);
+        boolean closing = mController.getCameraState() == MotorController.CAMERA_STATE_CLOSED;
         goBackHome();
-        mHandler.post(() -> {
-            boolean needsCalib = false;
-            if (status == MOTOR_STATUS_REQUEST_CALIB || status == MOTOR_STATUS_CALIB_ERROR){
-                needsCalib = true;
-            }else if (status == MOTOR_STATUS_POPUP_JAMMED){
-                if (mPopupFailedRecord >= POPUP_FAILED_MAX_TRIES){
-                    needsCalib = true;
-                }else{
-                    mPopupFailedRecord++;
-                }
-            }else if (status == MOTOR_STATUS_TAKEBACK_JAMMED){
-                if (mTakebackFailedRecord >= TAKEBACK_FAILED_MAX_TRIES){
-                    needsCalib = true;
-                }else{
-                    mTakebackFailedRecord++;
-                    try {
-                        mMotor.takebackMotor(1);
-                    } catch(Exception e) {
-                    }
-                }
-            }
-            Resources res = getResources();
-            int dialogMessageResId = needsCalib ? (mCameraState.equals(closeCameraState) ?
+        int messageResId = needsCalib ? (closing ?
                 R.string.popup_camera_takeback_falied_times_calibrate :
                 R.string.popup_camera_popup_falied_times_calibrate) :
-                    (mCameraState.equals(closeCameraState) ?
-                        R.string.takeback_camera_front_failed :
-                        R.string.popup_camera_front_failed);
-            AlertDialog.Builder alertDialogBuilder = new AlertDialog.Builder(this, R.style.SystemAlertDialogTheme)
-                    .setTitle(res.getString(R.string.popup_camera_tip));
-            alertDialogBuilder.setMessage(res.getString(dialogMessageResId));
-            if (needsCalib){
-                alertDialogBuilder.setPositiveButton(res.getString(R.string.popup_camera_calibrate_now),
-                        (dialog, which) -> {
-                        calibrateMotor();
-                });
-                alertDialogBuilder.setNegativeButton(res.getString(android.R.string.cancel), null);
-            }else{
-                alertDialogBuilder.setPositiveButton(android.R.string.ok, null);
-            }
-            AlertDialog alertDialog = alertDialogBuilder.create();
-            alertDialog.getWindow().setType(WindowManager.LayoutParams.TYPE_KEYGUARD_DIALOG);
-            alertDialog.setCancelable(false);
-            alertDialog.setCanceledOnTouchOutside(false);
-            alertDialog.show();
-            alertDialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
-                @Override
-                public void onDismiss(DialogInterface dialogInterface) {
-                    mDialogShowing = false;
-                }
-            });
-        });
+                (closing ?
+                R.string.takeback_camera_front_failed :
+                R.string.popup_camera_front_failed);
+        mAlertPresenter.show(needsCalib ?
+                new AlertPresenter.Alert(AlertPresenter.KIND_ERROR, AlertPresenter.PRIORITY_HIGH,
+                        messageResId, R.string.popup_camera_calibrate_now,
+                        android.R.string.cancel, mCalibrate, 0) :
+                new AlertPresenter.Alert(AlertPresenter.KIND_ERROR, AlertPresenter.PRIORITY_HIGH,
+                        messageResId, android.R.string.ok, 0, null, 0));
     }
 
-    private void lightUp() {
-        FileUtils.writeLine(GREEN_LED_PATH, "255");
-        FileUtils.writeLine(BLUE_LED_PATH, "255");
-
-        mHandler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                FileUtils.writeLine(GREEN_LED_PATH, "0");
-                FileUtils.writeLine(BLUE_LED_PATH, "0");
+    private void setFreeFallSensor(boolean enabled) {
+        if (enabled) {
+            if (mSensorManager.registerListener(mFreeFallListener, mFreeFallSensor, SensorManager.SENSOR_DELAY_NORMAL)) {
+                mFreeFallStats.onRegistered();
             }
-        }, 1200);
+        } else {
+            mSensorManager.unregisterListener(mFreeFallListener, mFreeFallSensor);
+            mFreeFallStats.onUnregistered();
+        }
     }
 
     private SensorEventListener mFreeFallListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
+            mFreeFallStats.onEvent();
             if (event.sensor.getType() == FREE_FALL_SENSOR_ID && event.values[0] == 2.0f) {
-                forceTakeback();
-                goBackHome();
+                mFreeFallStats.onAction();
+                mController.onFreeFall();
             }
         }
 
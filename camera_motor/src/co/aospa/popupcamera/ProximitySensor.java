@@ -32,6 +32,7 @@ public class ProximitySensor implements SensorEventListener {
     private ProximityListener mProximityListener;
     private Sensor mProximitySensor;
     private SensorManager mSensorManager;
+    private SensorStats mStats;
 
     public interface ProximityListener {
         void onEvent(boolean isNear, long timestamp);
@@ -39,13 +40,14 @@ public class ProximitySensor implements SensorEventListener {
     }
 
     public ProximitySensor(Context context, SensorManager sensorManager,
-            ProximityListener proximitylistener) {
+            ProximityListener proximitylistener, SensorStats stats) {
         mEnabled = false;
         reset();
         mProximitySensor = sensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY, true);
 
         mProximityListener = proximitylistener;
         mSensorManager = sensorManager;
+        mStats = stats;
 
         if (mProximitySensor != null) {
             mMaxRange = mProximitySensor.getMaximumRange();
@@ -57,6 +59,7 @@ public class ProximitySensor implements SensorEventListener {
 
     public void onSensorChanged(SensorEvent event) {
         if (event.values.length == 0) return;
+        mStats.onEvent();
         boolean isNear = (event.values[0] < mMaxRange);
 
         // Launch an event
@@ -78,6 +81,7 @@ public class ProximitySensor implements SensorEventListener {
         if (!mEnabled && mProximitySensor != null) {
             mSensorManager.registerListener(this, mProximitySensor, SensorManager.SENSOR_DELAY_NORMAL);
             mEnabled = true;
+            mStats.onRegistered();
         }
     }
 
@@ -90,6 +94,7 @@ public class ProximitySensor implements SensorEventListener {
         if (mEnabled && mProximitySensor != null) {
             mSensorManager.unregisterListener(this, mProximitySensor);
             mEnabled = false;
+            mStats.onUnregistered();
         }
     }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Counts how often a sensor is armed, how many events it delivers and how many of
+ * those led to an action, with per-minute event rates over the last hour.
+ */
+public class SensorStats {
+
+    private static final int MINUTES = 60;
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private final String mName;
+
+    private boolean mScreenOn = true;
+    private boolean mArmed;
+    private long mArmedSince;
+    private long mArmedTotalMs;
+    private int mRegistrations;
+    private long mEvents;
+    private long mScreenOffEvents;
+    private long mActions;
+
+    // Events per minute, indexed by minute modulo MINUTES
+    private final int[] mMinuteEvents = new int[MINUTES];
+    private long mCurrentMinute;
+
+    public SensorStats(String name) {
+        mName = name;
+        mCurrentMinute = SystemClock.elapsedRealtime() / MINUTE_MS;
+    }
+
+    public synchronized void onRegistered() {
+        if (mArmed) return;
+        mArmed = true;
+        mArmedSince = SystemClock.elapsedRealtime();
+        mRegistrations++;
+    }
+
+    public synchronized void onUnregistered() {
+        if (!mArmed) return;
+        mArmed = false;
+        mArmedTotalMs += SystemClock.elapsedRealtime() - mArmedSince;
+    }
+
+    /**
+     * Events delivered while the screen is off are counted as possible device wakeups.
+     */
+    public synchronized void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+    }
+
+    public synchronized void onEvent() {
+        advance(SystemClock.elapsedRealtime() / MINUTE_MS);
+        mMinuteEvents[(int) (mCurrentMinute % MINUTES)]++;
+        mEvents++;
+        if (!mScreenOn) mScreenOffEvents++;
+    }
+
+    public synchronized void onAction() {
+        mActions++;
+    }
+
+    private void advance(long minute) {
+        long steps = Math.min(minute - mCurrentMinute, MINUTES);
+        for (long i = 1; i <= steps; i++) {
+            mMinuteEvents[(int) ((mCurrentMinute + i) % MINUTES)] = 0;
+        }
+        mCurrentMinute = Math.max(mCurrentMinute, minute);
+    }
+
+    private int eventsInLast(int minutes) {
+        int total = 0;
+        for (int i = 0; i < minutes; i++) {
+            total += mMinuteEvents[(int) ((mCurrentMinute - i + MINUTES) % MINUTES)];
+        }
+        return total;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        advance(now / MINUTE_MS);
+        long armedMs = mArmedTotalMs + (mArmed ? now - mArmedSince : 0);
+        pw.println("  " + mName + ":");
+        pw.println("    armed=" + mArmed + " registrations=" + mRegistrations +
+                " armedMs=" + armedMs);
+        pw.println("    events=" + mEvents + " screenOffEvents=" + mScreenOffEvents +
+                " actions=" + mActions);
+        pw.println("    eventsPerMin: last=" + eventsInLast(1) +
+                " avg10=" + eventsInLast(10) / 10f + " avg60=" + eventsInLast(MINUTES) / 60f);
+    }
+}
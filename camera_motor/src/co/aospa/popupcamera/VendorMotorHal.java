@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera;
+
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import co.aospa.popupcamera.control.MotorController;
+import co.aospa.popupcamera.control.MotorHal;
+
+import vendor.xiaomi.hardware.motor.V1_0.IMotor;
+
+/**
+ * One IMotor proxy. Once the HAL dies the proxy fails every call; MotorHalConnection then
+ * replaces it with a new one.
+ */
+public class VendorMotorHal implements MotorHal {
+
+    private static final String TAG = "VendorMotorHal";
+
+    private final IMotor mMotor;
+    private final Runnable mOnDied;
+
+    /**
+     * @param onDied run when a call finds the HAL dead, in case the death notification
+     *               has not arrived yet
+     */
+    public VendorMotorHal(IMotor motor, Runnable onDied) {
+        mMotor = motor;
+        mOnDied = onDied;
+    }
+
+    private void onFailed(String call, RemoteException e) {
+        Log.e(TAG, call + " failed", e);
+        if (e instanceof DeadObjectException) {
+            mOnDied.run();
+        }
+    }
+
+    @Override
+    public int getMotorStatus() {
+        try {
+            return mMotor.getMotorStatus();
+        } catch (RemoteException e) {
+            onFailed("getMotorStatus", e);
+            return MotorController.MOTOR_STATUS_UNKNOWN;
+        }
+    }
+
+    @Override
+    public boolean popupMotor(int cookie) {
+        try {
+            mMotor.popupMotor(cookie);
+            return true;
+        } catch (RemoteException e) {
+            onFailed("popupMotor", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean takebackMotor(int cookie) {
+        try {
+            mMotor.takebackMotor(cookie);
+            return true;
+        } catch (RemoteException e) {
+            onFailed("takebackMotor", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean takebackMotorShortly() {
+        try {
+            mMotor.takebackMotorShortly();
+            return true;
+        } catch (RemoteException e) {
+            onFailed("takebackMotorShortly", e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean calibration() {
+        try {
+            mMotor.calibration();
+            return true;
+        } catch (RemoteException e) {
+            onFailed("calibration", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.control;
+
+/**
+ * Decides when the motor is worth recalibrating before it fails in front of the user.
+ *
+ * Jams and near misses are counted since the last calibration. A near miss is a move
+ * that completed, but took clearly longer than the baseline learned for its direction
+ * right after calibration, or one suspected of jamming because its MotorEvent was late. That is
+ * how worn or drifting mechanics show up before they jam.
+ */
+public class CalibrationPolicy {
+
+    /**
+     * Called whenever the persisted state changes.
+     */
+    public interface Callback {
+        void onStateChanged(CalibrationPolicy policy);
+    }
+
+    // Moves averaged into the baseline after each calibration
+    private static final int BASELINE_SAMPLES = 8;
+    // A move this much slower than the baseline counts as a near miss
+    private static final float NEAR_MISS_RATIO = 1.25f;
+
+    private static final int JAMS_DUE = 1;
+    private static final int NEAR_MISSES_DUE = 3;
+
+    private final Callback mCallback;
+
+    private int mJams;
+    private int mNearMisses;
+    private int mMoves;
+    // Per MotorTimingModel direction, popping up and taking back do not take equally long
+    private final long[] mBaselineMs = new long[2];
+    private final int[] mBaselineSamples = new int[2];
+    private final long[] mBaselineSumMs = new long[2];
+
+    public CalibrationPolicy(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Restores state saved from the getters.
+     */
+    public void restore(int jams, int nearMisses, int moves, long popupBaselineMs,
+            long takebackBaselineMs) {
+        mJams = jams;
+        mNearMisses = nearMisses;
+        mMoves = moves;
+        restoreBaseline(MotorTimingModel.POPUP, popupBaselineMs);
+        restoreBaseline(MotorTimingModel.TAKEBACK, takebackBaselineMs);
+    }
+
+    private void restoreBaseline(int direction, long baselineMs) {
+        mBaselineMs[direction] = baselineMs;
+        mBaselineSamples[direction] = baselineMs > 0 ? BASELINE_SAMPLES : 0;
+        mBaselineSumMs[direction] = 0;
+    }
+
+    public int getJams() {
+        return mJams;
+    }
+
+    public int getNearMisses() {
+        return mNearMisses;
+    }
+
+    public int getMoves() {
+        return mMoves;
+    }
+
+    /**
+     * @param direction MotorTimingModel.POPUP or MotorTimingModel.TAKEBACK
+     * @return the baseline move duration, or 0 while it is still being learned
+     */
+    public long getBaselineMs(int direction) {
+        return mBaselineMs[direction];
+    }
+
+    public boolean isCalibrationDue() {
+        return mJams >= JAMS_DUE || mNearMisses >= NEAR_MISSES_DUE;
+    }
+
+    void onMoveCompleted(int direction, long durationMs) {
+        mMoves++;
+        if (mBaselineSamples[direction] < BASELINE_SAMPLES) {
+            mBaselineSumMs[direction] += durationMs;
+            if (++mBaselineSamples[direction] == BASELINE_SAMPLES) {
+                mBaselineMs[direction] = mBaselineSumMs[direction] / BASELINE_SAMPLES;
+            }
+        } else if (durationMs > mBaselineMs[direction] * NEAR_MISS_RATIO) {
+            mNearMisses++;
+        }
+        mCallback.onStateChanged(this);
+    }
+
+    void onSuspectedJam() {
+        mNearMisses++;
+        mCallback.onStateChanged(this);
+    }
+
+    void onJam() {
+        mJams++;
+        mCallback.onStateChanged(this);
+    }
+
+    void onCalibrated(boolean success) {
+        if (!success) return;
+        mJams = 0;
+        mNearMisses = 0;
+        mMoves = 0;
+        restoreBaseline(MotorTimingModel.POPUP, 0);
+        restoreBaseline(MotorTimingModel.TAKEBACK, 0);
+        mCallback.onStateChanged(this);
+    }
+
+    @Override
+    public String toString() {
+        return "jams=" + mJams + " nearMisses=" + mNearMisses + " moves=" + mMoves +
+                " popupBaselineMs=" + mBaselineMs[MotorTimingModel.POPUP] +
+                " takebackBaselineMs=" + mBaselineMs[MotorTimingModel.TAKEBACK] + " due=" + isCalibrationDue();
+    }
+}
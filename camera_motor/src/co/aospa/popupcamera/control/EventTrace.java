@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera.control;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Fixed-size ring of the inputs fed to MotorController, in arrival order.
+ *
+ * The serialized form is the magic "PCTR", a version byte, the record count and then
+ * one 13-byte record per input: uptime in ms, input type and its argument.
+ */
+public class EventTrace {
+
+    public static final int TYPE_CAMERA_STATE = 1;
+    public static final int TYPE_SCREEN_ON = 2;
+    public static final int TYPE_SCREEN_OFF = 3;
+    public static final int TYPE_PROXIMITY_INIT = 4;
+    public static final int TYPE_PROXIMITY = 5;
+    public static final int TYPE_FREE_FALL = 6;
+    public static final int TYPE_MOTOR_EVENT = 7;
+    public static final int TYPE_CALIBRATE = 8;
+    public static final int TYPE_POPUP_HINT = 9;
+    public static final int TYPE_BACKGROUND_CALIBRATE = 10;
+
+    private static final int MAGIC = 0x50435452; // "PCTR"
+    private static final int VERSION = 1;
+
+    private final long[] mTimes;
+    private final byte[] mTypes;
+    private final int[] mArgs;
+    private int mNext;
+    private int mCount;
+
+    public EventTrace(int capacity) {
+        mTimes = new long[capacity];
+        mTypes = new byte[capacity];
+        mArgs = new int[capacity];
+    }
+
+    public synchronized void record(long uptimeMillis, int type, int arg) {
+        mTimes[mNext] = uptimeMillis;
+        mTypes[mNext] = (byte) type;
+        mArgs[mNext] = arg;
+        mNext = (mNext + 1) % mTimes.length;
+        if (mCount < mTimes.length) mCount++;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized long getTime(int index) {
+        return mTimes[slot(index)];
+    }
+
+    public synchronized int getType(int index) {
+        return mTypes[slot(index)];
+    }
+
+    public synchronized int getArg(int index) {
+        return mArgs[slot(index)];
+    }
+
+    private int slot(int index) {
+        return (mNext - mCount + index + mTimes.length) % mTimes.length;
+    }
+
+    public synchronized void writeTo(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(mCount);
+        for (int i = 0; i < mCount; i++) {
+            int slot = slot(i);
+            data.writeLong(mTimes[slot]);
+            data.writeByte(mTypes[slot]);
+            data.writeInt(mArgs[slot]);
+        }
+        data.flush();
+    }
+
+    public static EventTrace readFrom(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+            throw new IOException("Not a popup camera event trace");
+        }
+        int count = data.readInt();
+        if (count < 0) {
+            throw new EOFException("Corrupt record count " + count);
+        }
+        EventTrace trace = new EventTrace(Math.max(count, 1));
+        for (int i = 0; i < count; i++) {
+            trace.record(data.readLong(), data.readByte(), data.readInt());
+        }
+        return trace;
+    }
+
+    public static String typeToString(int type) {
+        switch (type) {
+            case TYPE_CAMERA_STATE: return "cameraState";
+            case TYPE_SCREEN_ON: return "screenOn";
+            case TYPE_SCREEN_OFF: return "screenOff";
+            case TYPE_PROXIMITY_INIT: return "proximityInit";
+            case TYPE_PROXIMITY: return "proximity";
+            case TYPE_FREE_FALL: return "freeFall";
+            case TYPE_MOTOR_EVENT: return "motorEvent";
+            case TYPE_CALIBRATE: return "calibrate";
+            case TYPE_POPUP_HINT: return "popupHint";
+            case TYPE_BACKGROUND_CALIBRATE: return "backgroundCalibrate";
+            default: return "unknown(" + type + ")";
+        }
+    }
+}
@@ -0,0 +1,651 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera.control;
+
+import co.aospa.popupcamera.utils.LimitSizeList;
+
+/**
+ * Decides when to pop up and take back the front camera motor.
+ *
+ * The controller has no Android dependencies so it can be driven by recorded or
+ * simulated inputs. All methods must be called on the thread its Scheduler runs on.
+ */
+public class MotorController {
+
+    // Motor status
+    public static final int MOTOR_STATUS_UNKNOWN = -1;
+    public static final int MOTOR_STATUS_POPUP_OK = 11;
+    public static final int MOTOR_STATUS_POPUP_JAMMED = 12;
+    public static final int MOTOR_STATUS_TAKEBACK_OK = 13;
+    public static final int MOTOR_STATUS_TAKEBACK_JAMMED = 14;
+    public static final int MOTOR_STATUS_PRESSED = 15;
+    public static final int MOTOR_STATUS_CALIB_OK = 17;
+    public static final int MOTOR_STATUS_CALIB_ERROR = 18;
+    public static final int MOTOR_STATUS_REQUEST_CALIB = 19;
+
+    // Motor state as reported to clients
+    public static final int MOTOR_STATE_UNKNOWN = 0;
+    public static final int MOTOR_STATE_DOWN = 1;
+    public static final int MOTOR_STATE_RISING = 2;
+    public static final int MOTOR_STATE_UP = 3;
+    public static final int MOTOR_STATE_FALLING = 4;
+    public static final int MOTOR_STATE_CALIBRATING = 5;
+    public static final int MOTOR_STATE_ERROR = 6;
+
+    // Camera state
+    public static final int CAMERA_STATE_UNKNOWN = -1;
+    public static final int CAMERA_STATE_CLOSED = 0;
+    public static final int CAMERA_STATE_OPEN = 1;
+
+    // Used until the timing model has learned this unit
+    private static final long MOTOR_BUSY_MS = 1200;
+    private static final long LED_ON_MS = 1200;
+    private static final long BUSY_RECHECK_MS = 100;
+    private static final long FREQUENT_WINDOW_MS = 20000;
+    // Gives up on a background calibration whose result never arrives
+    private static final long BACKGROUND_CALIBRATION_TIMEOUT_MS = 10000;
+    // Takes the camera back if a popup hint is not followed by the camera opening
+    private static final long POPUP_HINT_TIMEOUT_MS = 3000;
+    // Retries a move the HAL could not take, e.g. while it restarts after dying
+    private static final long COMMAND_RETRY_MS = 1000;
+    private static final long COMMAND_RETRY_WINDOW_MS = 10000;
+
+    // Whether the HAL reports finished moves through MotorEvents
+    private static final int COMPLETION_EVENTS_UNKNOWN = 0;
+    private static final int COMPLETION_EVENTS_SENT = 1;
+    private static final int COMPLETION_EVENTS_MISSING = 2;
+    // Moves in a row that ran out their busy window without any MotorEvent
+    private static final int MISSED_EVENTS_MISSING = 3;
+
+    private static final int POPUP_FAILED_MAX_TRIES = 3;
+    private static final int TAKEBACK_FAILED_MAX_TRIES = 3;
+
+    /**
+     * Receives every change of the motor state.
+     */
+    public interface StateListener {
+        void onMotorStateChanged(int state);
+    }
+
+    /**
+     * Platform side effects requested by the controller.
+     */
+    public interface Host {
+        void setLedsOn(boolean on);
+        void setFreeFallSensor(boolean enabled);
+        void goBackHome();
+        void showFrequentOperateDialog();
+        void showCalibrationResult(int status);
+        void handleError(int status);
+    }
+
+    private final MotorHal mMotor;
+    private final Scheduler mScheduler;
+    private final Host mHost;
+    private EventTrace mTrace;
+    private CalibrationPolicy mCalibrationPolicy;
+    private MotorTimingModel mTimingModel;
+    private StateListener mStateListener;
+
+    private int mCameraState = CAMERA_STATE_UNKNOWN;
+    private int mMotorState = MOTOR_STATE_UNKNOWN;
+    private boolean mScreenOn = true;
+    private boolean mPopupHinted;
+    private boolean mMotorBusy = false;
+    private boolean mMotorCalibrating = false;
+    private boolean mProximityNear;
+    private boolean mShouldTryUpdateMotor;
+    private int mPopupFailedRecord = 0;
+    private int mTakebackFailedRecord = 0;
+    private long mHalFailedSince = -1;
+    private long mCommandTime = -1;
+    private int mCommandDirection;
+    private boolean mJamSuspected;
+    private int mCompletionEvents = COMPLETION_EVENTS_UNKNOWN;
+    private int mMissedEvents;
+    // Updates are numbered so that a jam the motor already reported is not counted again
+    // by an update that was queued before the report
+    private int mUpdateRequest;
+    private int mJamReportedRequest;
+
+    // Calibration started without the user asking, e.g. from an idle job
+    private boolean mBackgroundCalibration;
+    private boolean mUpdateAfterCalibration;
+
+    private final LimitSizeList<Long> mPopupRecordList;
+
+    private final Runnable mLightsOff = new Runnable() {
+        @Override
+        public void run() {
+            mHost.setLedsOn(false);
+        }
+    };
+
+    private final Runnable mBusyTimeout = new Runnable() {
+        @Override
+        public void run() {
+            mMotorBusy = false;
+            if (mMotorState != MOTOR_STATE_RISING && mMotorState != MOTOR_STATE_FALLING) {
+                return;
+            }
+            if (mCompletionEvents != COMPLETION_EVENTS_SENT &&
+                    ++mMissedEvents >= MISSED_EVENTS_MISSING) {
+                mCompletionEvents = COMPLETION_EVENTS_MISSING;
+            }
+            // The MotorEvent is late or lost, so ask the motor where it is
+            syncMotorState(mMotor.getMotorStatus());
+            if (mCompletionEvents == COMPLETION_EVENTS_MISSING) {
+                // Nothing else will ever tell, assume the move done once the window is over
+                if (mMotorState == MOTOR_STATE_RISING) {
+                    setMotorState(MOTOR_STATE_UP);
+                } else if (mMotorState == MOTOR_STATE_FALLING) {
+                    setMotorState(MOTOR_STATE_DOWN);
+                }
+            }
+        }
+    };
+
+    private final Runnable mCommandRetry = new Runnable() {
+        @Override
+        public void run() {
+            updateMotor();
+        }
+    };
+
+    private final Runnable mPopupHintExpired = new Runnable() {
+        @Override
+        public void run() {
+            if (mPopupHinted) {
+                mPopupHinted = false;
+                forceTakeback();
+            }
+        }
+    };
+
+    private final Runnable mJamSuspicion = new Runnable() {
+        @Override
+        public void run() {
+            // A late MotorEvent is still learned, this only flags the slow move
+            mJamSuspected = true;
+            if (mTimingModel != null) {
+                mTimingModel.onSuspectedJam(mCommandDirection);
+            }
+            if (mCalibrationPolicy != null) {
+                mCalibrationPolicy.onSuspectedJam();
+            }
+        }
+    };
+
+    private final Runnable mBackgroundCalibrationTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mBackgroundCalibration) {
+                finishBackgroundCalibration();
+            }
+        }
+    };
+
+    /**
+     * @param motor the motor HAL, or null if it is unavailable
+     * @param frequentTriggerCount motor moves within 20s that trigger the frequent dialog
+     */
+    public MotorController(MotorHal motor, Scheduler scheduler, Host host,
+            int frequentTriggerCount) {
+        mMotor = motor;
+        mScheduler = scheduler;
+        mHost = host;
+        mPopupRecordList = new LimitSizeList<>(frequentTriggerCount);
+    }
+
+    /**
+     * Records every input from now on into the given trace.
+     */
+    public void setTrace(EventTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Reports jams, move durations and calibrations to the given policy.
+     */
+    public void setCalibrationPolicy(CalibrationPolicy policy) {
+        mCalibrationPolicy = policy;
+    }
+
+    /**
+     * Learns move durations into the given model and sizes the busy window, LED effect
+     * and jam suspicion from it.
+     */
+    public void setTimingModel(MotorTimingModel model) {
+        mTimingModel = model;
+    }
+
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+    private void setMotorState(int state) {
+        if (mMotorState == state) return;
+        mMotorState = state;
+        if (mStateListener != null) {
+            mStateListener.onMotorStateChanged(state);
+        }
+    }
+
+    private void record(int type, int arg) {
+        if (mTrace != null) {
+            mTrace.record(mScheduler.uptimeMillis(), type, arg);
+        }
+    }
+
+    public int getMotorState() {
+        return mMotorState;
+    }
+
+    /**
+     * Reads the motor status so that the motor state is known before the first move.
+     */
+    public void refreshMotorState() {
+        if (mMotor == null || mMotorBusy || mMotorCalibrating) return;
+        syncMotorState(mMotor.getMotorStatus());
+    }
+
+    public int getCameraState() {
+        return mCameraState;
+    }
+
+    public boolean isMotorCalibrating() {
+        return mMotorCalibrating;
+    }
+
+    public void onCameraStateChanged(int state) {
+        record(EventTrace.TYPE_CAMERA_STATE, state);
+        clearPopupHint();
+        mCameraState = state;
+        updateMotor();
+    }
+
+    public void onScreenOn() {
+        record(EventTrace.TYPE_SCREEN_ON, 0);
+        mScreenOn = true;
+    }
+
+    public void onScreenOff() {
+        record(EventTrace.TYPE_SCREEN_OFF, 0);
+        mScreenOn = false;
+        clearPopupHint();
+        if (mCameraState == CAMERA_STATE_OPEN) {
+            forceTakeback();
+        }
+    }
+
+    public void onProximityInit(boolean isNear) {
+        record(EventTrace.TYPE_PROXIMITY_INIT, isNear ? 1 : 0);
+        mProximityNear = isNear;
+    }
+
+    /**
+     * @return true if the change released a popup that was held back while near
+     */
+    public boolean onProximityChanged(boolean isNear) {
+        record(EventTrace.TYPE_PROXIMITY, isNear ? 1 : 0);
+        mProximityNear = isNear;
+        if (!mProximityNear && mShouldTryUpdateMotor) {
+            mShouldTryUpdateMotor = false;
+            updateMotor();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A camera app is about to open the front camera. The camera pops up right away
+     * and is taken back if the camera does not open soon after.
+     */
+    public void onPopupHint() {
+        record(EventTrace.TYPE_POPUP_HINT, 0);
+        if (!mScreenOn || mCameraState == CAMERA_STATE_OPEN) return;
+        mPopupHinted = true;
+        mScheduler.removeCallbacks(mPopupHintExpired);
+        mScheduler.postDelayed(mPopupHintExpired, POPUP_HINT_TIMEOUT_MS);
+        mCameraState = CAMERA_STATE_OPEN;
+        updateMotor();
+    }
+
+    private void clearPopupHint() {
+        if (!mPopupHinted) return;
+        mPopupHinted = false;
+        mScheduler.removeCallbacks(mPopupHintExpired);
+    }
+
+    public void onFreeFall() {
+        record(EventTrace.TYPE_FREE_FALL, 0);
+        forceTakeback();
+        mHost.goBackHome();
+    }
+
+    public void onMotorEvent(int status) {
+        record(EventTrace.TYPE_MOTOR_EVENT, status);
+        if (status == MOTOR_STATUS_CALIB_OK || status == MOTOR_STATUS_CALIB_ERROR) {
+            if (mCalibrationPolicy != null) {
+                mCalibrationPolicy.onCalibrated(status == MOTOR_STATUS_CALIB_OK);
+            }
+            setMotorState(status == MOTOR_STATUS_CALIB_OK ? MOTOR_STATE_DOWN : MOTOR_STATE_ERROR);
+            // Calibration leaves the camera retracted, whatever it was before
+            mHost.setFreeFallSensor(false);
+            if (mBackgroundCalibration) {
+                finishBackgroundCalibration();
+                return;
+            }
+            mMotorCalibrating = false;
+            mHost.showCalibrationResult(status);
+        } else if (status == MOTOR_STATUS_PRESSED) {
+            forceTakeback();
+            mHost.goBackHome();
+        } else if (status == MOTOR_STATUS_POPUP_JAMMED || status == MOTOR_STATUS_TAKEBACK_JAMMED) {
+            mCommandTime = -1;
+            mScheduler.removeCallbacks(mJamSuspicion);
+            setMotorState(MOTOR_STATE_ERROR);
+            if (mCalibrationPolicy != null) {
+                mCalibrationPolicy.onJam();
+            }
+            mJamReportedRequest = mUpdateRequest;
+            mHost.handleError(status);
+        } else if (status == MOTOR_STATUS_POPUP_OK || status == MOTOR_STATUS_TAKEBACK_OK) {
+            int direction = status == MOTOR_STATUS_POPUP_OK ?
+                    MotorTimingModel.POPUP : MotorTimingModel.TAKEBACK;
+            if (mCommandTime < 0 || direction != mCommandDirection) return;
+            mCompletionEvents = COMPLETION_EVENTS_SENT;
+            mMissedEvents = 0;
+            long duration = mScheduler.uptimeMillis() - mCommandTime;
+            mCommandTime = -1;
+            setMotorState(direction == MotorTimingModel.POPUP ? MOTOR_STATE_UP : MOTOR_STATE_DOWN);
+            mScheduler.removeCallbacks(mJamSuspicion);
+            if (mTimingModel != null) {
+                mTimingModel.onMoveCompleted(direction, duration);
+            }
+            if (mCalibrationPolicy != null && !mJamSuspected) {
+                mCalibrationPolicy.onMoveCompleted(direction, duration);
+            }
+            if (mMotorBusy) {
+                // The move is done, no need to sit out the rest of the busy window
+                mScheduler.removeCallbacks(mBusyTimeout);
+                mMotorBusy = false;
+            }
+        }
+    }
+
+    public void calibrate() {
+        record(EventTrace.TYPE_CALIBRATE, 0);
+        if (mMotorCalibrating || mMotor == null) return;
+        mMotorCalibrating = true;
+        setMotorState(MOTOR_STATE_CALIBRATING);
+        mMotor.calibration();
+    }
+
+    /**
+     * Calibrates the motor unless the camera is, or is about to be, in use. A camera
+     * opened while calibrating is popped up once calibration ends.
+     *
+     * @return true if calibration was started
+     */
+    public boolean calibrateInBackground() {
+        record(EventTrace.TYPE_BACKGROUND_CALIBRATE, 0);
+        if (mMotor == null || mMotorCalibrating || mMotorBusy || mShouldTryUpdateMotor ||
+                mCameraState == CAMERA_STATE_OPEN) {
+            return false;
+        }
+        int status = mMotor.getMotorStatus();
+        if (status != MOTOR_STATUS_TAKEBACK_OK && status != MOTOR_STATUS_CALIB_OK) {
+            return false;
+        }
+        if (!mMotor.calibration()) {
+            return false;
+        }
+        mBackgroundCalibration = true;
+        mMotorCalibrating = true;
+        setMotorState(MOTOR_STATE_CALIBRATING);
+        mScheduler.postDelayed(mBackgroundCalibrationTimeout, BACKGROUND_CALIBRATION_TIMEOUT_MS);
+        return true;
+    }
+
+    private void finishBackgroundCalibration() {
+        mScheduler.removeCallbacks(mBackgroundCalibrationTimeout);
+        if (mMotorState == MOTOR_STATE_CALIBRATING) {
+            // Timed out without a result
+            setMotorState(MOTOR_STATE_UNKNOWN);
+        }
+        mBackgroundCalibration = false;
+        mMotorCalibrating = false;
+        if (mUpdateAfterCalibration) {
+            mUpdateAfterCalibration = false;
+            updateMotor();
+        }
+    }
+
+    /**
+     * Counts a motor error and retries a jammed takeback.
+     *
+     * @return true if the motor should be calibrated
+     */
+    public boolean onError(int status) {
+        if (status == MOTOR_STATUS_REQUEST_CALIB || status == MOTOR_STATUS_CALIB_ERROR) {
+            return true;
+        } else if (status == MOTOR_STATUS_POPUP_JAMMED) {
+            if (mPopupFailedRecord >= POPUP_FAILED_MAX_TRIES) {
+                return true;
+            }
+            mPopupFailedRecord++;
+        } else if (status == MOTOR_STATUS_TAKEBACK_JAMMED) {
+            if (mTakebackFailedRecord >= TAKEBACK_FAILED_MAX_TRIES) {
+                return true;
+            }
+            mTakebackFailedRecord++;
+            if (mMotor != null && mMotor.takebackMotor(1)) {
+                setMotorState(MOTOR_STATE_FALLING);
+            }
+        }
+        return false;
+    }
+
+    private void forceTakeback() {
+        mCameraState = CAMERA_STATE_CLOSED;
+        updateMotor();
+    }
+
+    private void checkFrequentOperate() {
+        mPopupRecordList.add(mScheduler.uptimeMillis());
+        if (mPopupRecordList.isFull() &&
+                mPopupRecordList.getLast() - mPopupRecordList.getFirst() < FREQUENT_WINDOW_MS) {
+            mHost.showFrequentOperateDialog();
+        }
+    }
+
+    private void lightUp(long durationMs) {
+        mHost.setLedsOn(true);
+        mScheduler.removeCallbacks(mLightsOff);
+        mScheduler.postDelayed(mLightsOff, durationMs);
+    }
+
+    /**
+     * Tries the update again later while the HAL has been failing for less than
+     * COMMAND_RETRY_WINDOW_MS. Only an accepted command, or an update that has nothing
+     * to send, ends the failure; a status read that works while commands are rejected
+     * does not.
+     */
+    private void scheduleCommandRetry() {
+        long now = mScheduler.uptimeMillis();
+        if (mHalFailedSince < 0) {
+            mHalFailedSince = now;
+        } else if (now - mHalFailedSince >= COMMAND_RETRY_WINDOW_MS) {
+            return;
+        }
+        mScheduler.removeCallbacks(mCommandRetry);
+        mScheduler.postDelayed(mCommandRetry, COMMAND_RETRY_MS);
+    }
+
+    /**
+     * Sends the move command and lights up if the HAL took it.
+     *
+     * @return how long the motor is busy with the move, or -1 if the HAL rejected it
+     */
+    private long startMove(int direction) {
+        boolean sent = direction == MotorTimingModel.POPUP ?
+                mMotor.popupMotor(1) : mMotor.takebackMotor(1);
+        if (!sent) {
+            scheduleCommandRetry();
+            return -1;
+        }
+        mScheduler.removeCallbacks(mCommandRetry);
+        mHalFailedSince = -1;
+        MotorTimingModel model = mTimingModel;
+        lightUp(model != null ? model.getLedMs(direction) : LED_ON_MS);
+        mCommandTime = mScheduler.uptimeMillis();
+        mCommandDirection = direction;
+        setMotorState(direction == MotorTimingModel.POPUP ? MOTOR_STATE_RISING : MOTOR_STATE_FALLING);
+        mJamSuspected = false;
+        mScheduler.removeCallbacks(mJamSuspicion);
+        // A missing MotorEvent only means something once this HAL has been seen to send them
+        if (model != null && model.isTrained(direction)) {
+            mScheduler.postDelayed(mJamSuspicion, model.getJamSuspicionMs(direction));
+        }
+        return model != null ? model.getCompletionTimeoutMs(direction) : MOTOR_BUSY_MS;
+    }
+
+    /**
+     * Picks up the motor position from a status read. While a move is tracked only its
+     * end position or jam counts, as the HAL reports where the move started until then.
+     */
+    private void syncMotorState(int status) {
+        if (mMotorState == MOTOR_STATE_CALIBRATING) {
+            return;
+        } else if (mMotorState == MOTOR_STATE_RISING) {
+            if (status == MOTOR_STATUS_POPUP_OK) {
+                setMotorState(MOTOR_STATE_UP);
+            } else if (status == MOTOR_STATUS_POPUP_JAMMED) {
+                setMotorState(MOTOR_STATE_ERROR);
+            }
+            return;
+        } else if (mMotorState == MOTOR_STATE_FALLING) {
+            if (status == MOTOR_STATUS_TAKEBACK_OK) {
+                setMotorState(MOTOR_STATE_DOWN);
+            } else if (status == MOTOR_STATUS_TAKEBACK_JAMMED) {
+                setMotorState(MOTOR_STATE_ERROR);
+            }
+            return;
+        }
+        if (status == MOTOR_STATUS_POPUP_OK) {
+            setMotorState(MOTOR_STATE_UP);
+        } else if (status == MOTOR_STATUS_TAKEBACK_OK || status == MOTOR_STATUS_CALIB_OK) {
+            setMotorState(MOTOR_STATE_DOWN);
+        } else if (status == MOTOR_STATUS_UNKNOWN) {
+            setMotorState(MOTOR_STATE_UNKNOWN);
+        } else if (status != MOTOR_STATUS_PRESSED) {
+            setMotorState(MOTOR_STATE_ERROR);
+        }
+    }
+
+    private void updateMotor() {
+        final int request = ++mUpdateRequest;
+        final Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                if (mMotor == null) return;
+                mMotorBusy = true;
+                long busyMs = MOTOR_BUSY_MS;
+                int status = mMotor.getMotorStatus();
+                syncMotorState(status);
+                if (mMotorCalibrating && mBackgroundCalibration) {
+                    // Not the user's doing, so wait for it instead of failing the open
+                    mMotorBusy = false;
+                    mUpdateAfterCalibration = true;
+                    return;
+                } else if (mMotorCalibrating) {
+                    mMotorBusy = false;
+                    mHost.goBackHome();
+                    mHost.showCalibrationResult(-1);
+                    return;
+                } else if (mCameraState == CAMERA_STATE_OPEN &&
+                        (status == MOTOR_STATUS_TAKEBACK_OK || status == MOTOR_STATUS_CALIB_OK)) {
+                    mTakebackFailedRecord = 0;
+                    if (!mProximityNear) {
+                        busyMs = startMove(MotorTimingModel.POPUP);
+                        if (busyMs < 0) {
+                            mMotorBusy = false;
+                            return;
+                        }
+                        mHost.setFreeFallSensor(true);
+                        checkFrequentOperate();
+                    } else {
+                        // No command to retry, the proximity sensor going far sends it
+                        mHalFailedSince = -1;
+                        mShouldTryUpdateMotor = true;
+                    }
+                } else if (mCameraState == CAMERA_STATE_CLOSED &&
+                        (status == MOTOR_STATUS_POPUP_OK || status == MOTOR_STATUS_CALIB_OK)) {
+                    mPopupFailedRecord = 0;
+                    busyMs = startMove(MotorTimingModel.TAKEBACK);
+                    if (busyMs < 0) {
+                        mMotorBusy = false;
+                        return;
+                    }
+                    mHost.setFreeFallSensor(false);
+                    checkFrequentOperate();
+                } else {
+                    mMotorBusy = false;
+                    if (status == MOTOR_STATUS_UNKNOWN) {
+                        // The HAL is unreachable, e.g. while it restarts; try again once it is back
+                        scheduleCommandRetry();
+                        return;
+                    }
+                    // Nothing to send, so nothing left to retry
+                    mHalFailedSince = -1;
+                    mScheduler.removeCallbacks(mCommandRetry);
+                    if ((status == MOTOR_STATUS_POPUP_JAMMED ||
+                            status == MOTOR_STATUS_TAKEBACK_JAMMED) &&
+                            request <= mJamReportedRequest) {
+                        // Counted, retried and reported when the motor event came in
+                        return;
+                    }
+                    if (status == MOTOR_STATUS_REQUEST_CALIB ||
+                            status == MOTOR_STATUS_POPUP_JAMMED ||
+                            status == MOTOR_STATUS_TAKEBACK_JAMMED ||
+                            status == MOTOR_STATUS_CALIB_ERROR) {
+                        mHost.handleError(status);
+                    }
+                    return;
+                }
+                mScheduler.removeCallbacks(mBusyTimeout);
+                mScheduler.postDelayed(mBusyTimeout, busyMs);
+            }
+        };
+        if (mMotorBusy) {
+            mScheduler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mMotorBusy) {
+                        mScheduler.postDelayed(this, BUSY_RECHECK_MS);
+                    } else {
+                        mScheduler.post(r);
+                    }
+                }
+            }, BUSY_RECHECK_MS);
+        } else {
+            mScheduler.post(r);
+        }
+    }
+}
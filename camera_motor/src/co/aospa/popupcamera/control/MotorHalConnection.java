@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera.control;
+
+/**
+ * MotorHal that survives the HAL dying. A dead HIDL proxy fails every call for good, so
+ * when the HAL dies the proxy is dropped and a new one is fetched, which registers the
+ * motor callback again. Until that succeeds status reads report MOTOR_STATUS_UNKNOWN and
+ * commands are rejected, which MotorController retries.
+ *
+ * Runs on the scheduler's thread; death notifications may arrive on any thread.
+ */
+public class MotorHalConnection implements MotorHal {
+
+    private static final long RECONNECT_MIN_MS = 1000;
+    private static final long RECONNECT_MAX_MS = 60000;
+
+    public interface Connector {
+        /**
+         * Fetches the HAL, registers the motor callback on it and arranges for onDied to
+         * be run, from any thread, once it dies.
+         *
+         * @return the new proxy, or null if the HAL is not available
+         */
+        MotorHal connect(Runnable onDied);
+    }
+
+    private final Connector mConnector;
+    private final Scheduler mScheduler;
+
+    private MotorHal mHal;
+    // Tells death notifications of earlier proxies apart
+    private int mGeneration;
+    private long mReconnectMs = RECONNECT_MIN_MS;
+    private int mDeaths;
+
+    private final Runnable mReconnect = new Runnable() {
+        @Override
+        public void run() {
+            connect();
+        }
+    };
+
+    public MotorHalConnection(Connector connector, Scheduler scheduler) {
+        mConnector = connector;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Fetches the HAL, and keeps trying with backoff if it is not available.
+     *
+     * @return whether the HAL is connected now
+     */
+    public boolean connect() {
+        if (mHal != null) return true;
+        mScheduler.removeCallbacks(mReconnect);
+        final int generation = ++mGeneration;
+        mHal = mConnector.connect(() -> mScheduler.post(() -> onDied(generation)));
+        if (mHal == null) {
+            mScheduler.postDelayed(mReconnect, mReconnectMs);
+            mReconnectMs = Math.min(mReconnectMs * 2, RECONNECT_MAX_MS);
+            return false;
+        }
+        mReconnectMs = RECONNECT_MIN_MS;
+        return true;
+    }
+
+    public boolean isConnected() {
+        return mHal != null;
+    }
+
+    public int getDeathCount() {
+        return mDeaths;
+    }
+
+    private void onDied(int generation) {
+        if (generation != mGeneration || mHal == null) return;
+        mHal = null;
+        mDeaths++;
+        connect();
+    }
+
+    @Override
+    public int getMotorStatus() {
+        MotorHal hal = mHal;
+        return hal != null ? hal.getMotorStatus() : MotorController.MOTOR_STATUS_UNKNOWN;
+    }
+
+    @Override
+    public boolean popupMotor(int cookie) {
+        MotorHal hal = mHal;
+        return hal != null && hal.popupMotor(cookie);
+    }
+
+    @Override
+    public boolean takebackMotor(int cookie) {
+        MotorHal hal = mHal;
+        return hal != null && hal.takebackMotor(cookie);
+    }
+
+    @Override
+    public boolean takebackMotorShortly() {
+        MotorHal hal = mHal;
+        return hal != null && hal.takebackMotorShortly();
+    }
+
+    @Override
+    public boolean calibration() {
+        MotorHal hal = mHal;
+        return hal != null && hal.calibration();
+    }
+}
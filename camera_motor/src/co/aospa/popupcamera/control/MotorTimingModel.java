@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package co.aospa.popupcamera.control;
+
+import java.util.Arrays;
+
+/**
+ * Learns how long this unit's motor takes to pop up and take back, from the time
+ * between a command and the matching MotorEvent.
+ *
+ * Each direction keeps an EWMA of the travel time and the 95th percentile of the last
+ * moves. Until enough moves were seen the fixed defaults apply. The EWMA reached after
+ * the first moves is kept as a reference, so a unit that slows down with age can be
+ * told apart from one that was always slow.
+ */
+public class MotorTimingModel {
+
+    public static final int POPUP = 0;
+    public static final int TAKEBACK = 1;
+
+    /**
+     * Called after every learned move.
+     */
+    public interface Callback {
+        void onModelChanged(MotorTimingModel model);
+    }
+
+    private static final long DEFAULT_MS = 1200;
+    private static final int MIN_SAMPLES = 8;
+    private static final int WINDOW = 64;
+    private static final float EWMA_ALPHA = 0.2f;
+
+    private static final long MIN_TIMEOUT_MS = 400;
+    private static final long MAX_TIMEOUT_MS = 3000;
+    private static final float TIMEOUT_MARGIN = 1.2f;
+    private static final float JAM_SUSPICION_FACTOR = 1.5f;
+    private static final float SLOW_FACTOR = 1.3f;
+
+    private final Callback mCallback;
+
+    private final float[] mEwmaMs = new float[2];
+    private final int[] mSamples = new int[2];
+    private final long[] mP95Ms = new long[2];
+    private final float[] mReferenceMs = new float[2];
+    private final int[] mSuspectedJams = new int[2];
+
+    private final long[][] mWindow = new long[2][WINDOW];
+    private final int[] mWindowCount = new int[2];
+    private final int[] mWindowNext = new int[2];
+    private final long[] mSorted = new long[WINDOW];
+
+    public MotorTimingModel(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Restores state saved from the getters. The percentile window starts empty and
+     * the saved 95th percentile is used until it has refilled.
+     */
+    public void restore(int direction, float ewmaMs, int samples, long p95Ms, float referenceMs) {
+        mEwmaMs[direction] = ewmaMs;
+        mSamples[direction] = samples;
+        mP95Ms[direction] = p95Ms;
+        mReferenceMs[direction] = referenceMs;
+    }
+
+    public float getEwmaMs(int direction) {
+        return mEwmaMs[direction];
+    }
+
+    public int getSamples(int direction) {
+        return mSamples[direction];
+    }
+
+    public long getP95Ms(int direction) {
+        return mP95Ms[direction];
+    }
+
+    public float getReferenceMs(int direction) {
+        return mReferenceMs[direction];
+    }
+
+    public int getSuspectedJams(int direction) {
+        return mSuspectedJams[direction];
+    }
+
+    /**
+     * @return true once enough moves in this direction ended with a MotorEvent
+     */
+    public boolean isTrained(int direction) {
+        return mSamples[direction] >= MIN_SAMPLES;
+    }
+
+    private static long clamp(long ms) {
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, ms));
+    }
+
+    /**
+     * @return how long a move should keep the motor busy if no MotorEvent arrives
+     */
+    public long getCompletionTimeoutMs(int direction) {
+        if (!isTrained(direction)) return DEFAULT_MS;
+        return clamp((long) (mP95Ms[direction] * TIMEOUT_MARGIN));
+    }
+
+    /**
+     * @return how long the LEDs stay lit for a move, roughly its travel time
+     */
+    public long getLedMs(int direction) {
+        if (!isTrained(direction)) return DEFAULT_MS;
+        return clamp((long) mEwmaMs[direction]);
+    }
+
+    /**
+     * @return after how long a move without MotorEvent is suspected to be jammed. Only
+     *         meaningful once trained, before that a late event is not told from none.
+     */
+    public long getJamSuspicionMs(int direction) {
+        if (!isTrained(direction)) return (long) (DEFAULT_MS * JAM_SUSPICION_FACTOR);
+        return clamp((long) (mP95Ms[direction] * JAM_SUSPICION_FACTOR));
+    }
+
+    /**
+     * @return true if the motor became clearly slower than it was when first learned
+     */
+    public boolean isSlow(int direction) {
+        return mReferenceMs[direction] > 0 &&
+                mEwmaMs[direction] > mReferenceMs[direction] * SLOW_FACTOR;
+    }
+
+    void onMoveCompleted(int direction, long durationMs) {
+        long sample = Math.min(durationMs, MAX_TIMEOUT_MS * 2);
+        mEwmaMs[direction] = mSamples[direction] == 0 ? sample :
+                mEwmaMs[direction] + EWMA_ALPHA * (sample - mEwmaMs[direction]);
+        mSamples[direction]++;
+
+        long[] window = mWindow[direction];
+        window[mWindowNext[direction]] = sample;
+        mWindowNext[direction] = (mWindowNext[direction] + 1) % WINDOW;
+        int count = mWindowCount[direction] = Math.min(mWindowCount[direction] + 1, WINDOW);
+        if (count >= MIN_SAMPLES || mP95Ms[direction] == 0) {
+            System.arraycopy(window, 0, mSorted, 0, count);
+            Arrays.sort(mSorted, 0, count);
+            mP95Ms[direction] = mSorted[(int) Math.ceil(0.95 * count) - 1];
+        }
+
+        if (mReferenceMs[direction] == 0 && mSamples[direction] == MIN_SAMPLES) {
+            mReferenceMs[direction] = mEwmaMs[direction];
+        }
+        mCallback.onModelChanged(this);
+    }
+
+    void onSuspectedJam(int direction) {
+        mSuspectedJams[direction]++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int d = POPUP; d <= TAKEBACK; d++) {
+            if (d > POPUP) sb.append(", ");
+            sb.append(d == POPUP ? "popup" : "takeback")
+                    .append(": ewmaMs=").append((long) mEwmaMs[d])
+                    .append(" p95Ms=").append(mP95Ms[d])
+                    .append(" samples=").append(mSamples[d])
+                    .append(" referenceMs=").append((long) mReferenceMs[d])
+                    .append(" suspectedJams=").append(mSuspectedJams[d])
+                    .append(isSlow(d) ? " SLOW" : "");
+        }
+        return sb.toString();
+    }
+}
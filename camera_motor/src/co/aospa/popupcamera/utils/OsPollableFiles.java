@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera.utils;
+
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * PollableFiles on top of poll(2). Sysfs attributes wait on POLLPRI|POLLERR and FIFOs on
+ * POLLIN; a pipe wakes the poll up.
+ */
+public final class OsPollableFiles implements PollableFiles {
+    private static final String TAG = "SysfsWatcher";
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final SparseArray<StructPollfd> mPollfds = new SparseArray<>();
+    private int mNextHandle = 1;
+
+    private FileDescriptor[] mWakePipe;
+    private final byte[] mWakeBuffer = new byte[16];
+    private final StructPollfd mWakePollfd = new StructPollfd();
+
+    // Poll set built for the last handles array passed to poll()
+    private int[] mPolledHandles;
+    private StructPollfd[] mPolledFds;
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public boolean isFifo(String path) throws IOException {
+        try {
+            return OsConstants.S_ISFIFO(Os.stat(path).st_mode);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    @Override
+    public boolean mayNotify(String path) {
+        return path.startsWith("/sys/");
+    }
+
+    @Override
+    public int open(String path, boolean fifo) throws IOException {
+        FileDescriptor fd;
+        try {
+            fd = Os.open(path, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC |
+                    (fifo ? OsConstants.O_NONBLOCK : 0), 0);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        StructPollfd pollfd = new StructPollfd();
+        pollfd.fd = fd;
+        synchronized (mLock) {
+            int handle = mNextHandle++;
+            mPollfds.put(handle, pollfd);
+            return handle;
+        }
+    }
+
+    private FileDescriptor getFd(int handle) throws IOException {
+        synchronized (mLock) {
+            StructPollfd pollfd = mPollfds.get(handle);
+            if (pollfd == null) {
+                throw new IOException("Bad handle " + handle);
+            }
+            return pollfd.fd;
+        }
+    }
+
+    @Override
+    public int read(int handle, byte[] buffer) throws IOException {
+        try {
+            return Os.read(getFd(handle), buffer, 0, buffer.length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EAGAIN) {
+                return -1;
+            }
+            throw e.rethrowAsIOException();
+        } catch (InterruptedIOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public int pread(int handle, byte[] buffer) throws IOException {
+        try {
+            return Os.pread(getFd(handle), buffer, 0, buffer.length, 0);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    @Override
+    public void close(int handle) {
+        StructPollfd pollfd;
+        synchronized (mLock) {
+            pollfd = mPollfds.get(handle);
+            mPollfds.remove(handle);
+        }
+        if (pollfd != null) {
+            closeQuietly(pollfd.fd);
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        try {
+            mWakePipe = Os.pipe();
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        mWakePollfd.fd = mWakePipe[0];
+        mWakePollfd.events = (short) OsConstants.POLLIN;
+        mPolledHandles = null;
+    }
+
+    @Override
+    public void stop() {
+        FileDescriptor[] pipe = mWakePipe;
+        if (pipe == null) return;
+        mWakePipe = null;
+        closeQuietly(pipe[0]);
+        closeQuietly(pipe[1]);
+    }
+
+    @Override
+    public void wake() {
+        FileDescriptor[] pipe = mWakePipe;
+        if (pipe == null) return;
+        try {
+            Os.write(pipe[1], mWakeBuffer, 0, 1);
+        } catch (ErrnoException | InterruptedIOException e) {
+            // The loop still picks up the change on its next wakeup
+        }
+    }
+
+    @Override
+    public void poll(int[] handles, int[] events, int[] revents, int timeoutMs)
+            throws IOException {
+        if (handles != mPolledHandles) {
+            mPolledHandles = handles;
+            mPolledFds = new StructPollfd[handles.length + 1];
+            mPolledFds[0] = mWakePollfd;
+            synchronized (mLock) {
+                for (int i = 0; i < handles.length; i++) {
+                    mPolledFds[i + 1] = mPollfds.get(handles[i]);
+                }
+            }
+        }
+        for (int i = 0; i < handles.length; i++) {
+            mPolledFds[i + 1].events = (short) (events[i] == EVENT_READABLE ?
+                    OsConstants.POLLIN : OsConstants.POLLPRI | OsConstants.POLLERR);
+        }
+        for (StructPollfd pollfd : mPolledFds) {
+            pollfd.revents = 0;
+        }
+
+        try {
+            Os.poll(mPolledFds, timeoutMs);
+        } catch (ErrnoException e) {
+            if (e.errno != OsConstants.EINTR) {
+                throw e.rethrowAsIOException();
+            }
+        }
+
+        if (mWakePollfd.revents != 0) {
+            try {
+                Os.read(mWakePipe[0], mWakeBuffer, 0, mWakeBuffer.length);
+            } catch (ErrnoException | InterruptedIOException e) {
+                // Nothing left to drain
+            }
+        }
+        for (int i = 0; i < handles.length; i++) {
+            revents[i] = mPolledFds[i + 1].revents != 0 ? events[i] : 0;
+        }
+    }
+
+    @Override
+    public void log(String message, Throwable tr) {
+        Log.w(TAG, message, tr);
+    }
+
+    private static void closeQuietly(FileDescriptor fd) {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            // Ignored, not much we can do anyway
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera.utils;
+
+import java.io.IOException;
+
+/**
+ * File access for SysfsWatcher. Files are referred to by integer handles.
+ *
+ * poll() blocks until a handle has one of its events, wake() is called or the timeout
+ * expires. Hang-ups and errors are reported as any of the requested events.
+ */
+public interface PollableFiles {
+    /** The kernel raised sysfs_notify() on the attribute */
+    int EVENT_CHANGED = 1;
+    /** Data can be read without blocking */
+    int EVENT_READABLE = 2;
+
+    long uptimeMillis();
+
+    boolean isFifo(String path) throws IOException;
+
+    /**
+     * Whether the file may raise EVENT_CHANGED. This only says the file system supports
+     * it, e.g. sysfs; the attribute itself may never call sysfs_notify().
+     */
+    boolean mayNotify(String path);
+
+    /**
+     * Opens the file for reading, without blocking for FIFOs.
+     */
+    int open(String path, boolean fifo) throws IOException;
+
+    /**
+     * Reads from the current position of a FIFO.
+     *
+     * @return the number of bytes read, 0 at end of file or -1 if no data is available
+     */
+    int read(int handle, byte[] buffer) throws IOException;
+
+    /**
+     * Reads from the start of the file.
+     *
+     * @return the number of bytes read
+     */
+    int pread(int handle, byte[] buffer) throws IOException;
+
+    void close(int handle);
+
+    void start() throws IOException;
+
+    void stop();
+
+    void wake();
+
+    /**
+     * Waits for events. Callers pass the same arrays until the set of handles changes.
+     *
+     * @param timeoutMs how long to wait at most, or -1 to wait until an event or wake()
+     */
+    void poll(int[] handles, int[] events, int[] revents, int timeoutMs) throws IOException;
+
+    void log(String message, Throwable tr);
+}
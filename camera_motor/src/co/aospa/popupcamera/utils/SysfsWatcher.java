@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2019 The LineageOS Project
+ *               2019 Paranoid Android
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package co.aospa.popupcamera.utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Watches file attributes for changes from a single background thread.
+ *
+ * FIFOs are waited on for data. Sysfs attributes are waited on for sysfs_notify(), but
+ * many attributes, e.g. LED brightness, never call it. Until a notification arrives an
+ * attribute is therefore also re-read on a shared timer; if the timer sees it change and
+ * no notification follows within one more interval, it is left to the timer for good.
+ * Every other file is only re-read on the timer. Files are only reported when their
+ * contents differ from the last report.
+ *
+ * Listeners run on the watcher thread and receive a buffer owned by the watch; it is
+ * only valid for the duration of the callback.
+ */
+public final class SysfsWatcher {
+    private static final int BUFFER_SIZE = 64;
+
+    private static final int KIND_SYSFS = 0;
+    private static final int KIND_FIFO = 1;
+    private static final int KIND_TIMER = 2;
+
+    private static final String[] KIND_NAMES = { "sysfs", "fifo", "timer" };
+
+    public interface Listener {
+        void onChanged(String path, byte[] value, int length);
+    }
+
+    private static final class Watch {
+        final String path;
+        final Listener listener;
+        final int handle;
+        // Only changed by the loop thread, from KIND_SYSFS to KIND_TIMER
+        volatile int kind;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final byte[] last = new byte[BUFFER_SIZE];
+        int lastLength = -1;
+        boolean primed;
+        // Sysfs attribute that raised sysfs_notify() at least once
+        volatile boolean notifies;
+        // The timer saw a change the attribute did not notify about
+        boolean suspect;
+
+        Watch(String path, Listener listener, int handle, int kind) {
+            this.path = path;
+            this.listener = listener;
+            this.handle = handle;
+            this.kind = kind;
+        }
+
+        boolean isTimed() {
+            return kind == KIND_TIMER || (kind == KIND_SYSFS && !notifies);
+        }
+    }
+
+    private final PollableFiles mFiles;
+    private final long mTimerIntervalMs;
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final ArrayList<Watch> mWatches = new ArrayList<>();
+    // Removed watches whose handles the loop may still be polling
+    private final ArrayList<Watch> mRemoved = new ArrayList<>();
+    private boolean mWatchesChanged = true;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * @param timerIntervalMs how often files without change notification are re-read
+     */
+    public SysfsWatcher(PollableFiles files, long timerIntervalMs) {
+        mFiles = files;
+        mTimerIntervalMs = timerIntervalMs;
+    }
+
+    /**
+     * Starts watching the given file. For regular files and sysfs attributes the listener
+     * is first called with the current value; FIFOs only report data written from now on.
+     *
+     * @return true on success, false if the file cannot be opened
+     */
+    public boolean watch(String path, Listener listener) {
+        int handle;
+        int kind;
+        try {
+            boolean fifo = mFiles.isFifo(path);
+            handle = mFiles.open(path, fifo);
+            kind = fifo ? KIND_FIFO : (mFiles.mayNotify(path) ? KIND_SYSFS : KIND_TIMER);
+        } catch (IOException e) {
+            mFiles.log("Could not watch " + path, e);
+            return false;
+        }
+
+        synchronized (mLock) {
+            mWatches.add(new Watch(path, listener, handle, kind));
+            mWatchesChanged = true;
+        }
+        mFiles.wake();
+        return true;
+    }
+
+    public void unwatch(String path, Listener listener) {
+        synchronized (mLock) {
+            for (int i = mWatches.size() - 1; i >= 0; i--) {
+                Watch w = mWatches.get(i);
+                if (w.path.equals(path) && w.listener == listener) {
+                    mWatches.remove(i);
+                    if (mRunning) {
+                        mRemoved.add(w);
+                    } else {
+                        mFiles.close(w.handle);
+                    }
+                    mWatchesChanged = true;
+                }
+            }
+        }
+        mFiles.wake();
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) return;
+            try {
+                mFiles.start();
+            } catch (IOException e) {
+                mFiles.log("Could not start watching", e);
+                return;
+            }
+            mRunning = true;
+            mWatchesChanged = true;
+            mThread = new Thread(this::loop, "SysfsWatcher");
+            mThread.start();
+        }
+    }
+
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            if (!mRunning) return;
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+        }
+        mFiles.wake();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mLock) {
+            for (Watch w : mWatches) {
+                mFiles.close(w.handle);
+            }
+            for (Watch w : mRemoved) {
+                mFiles.close(w.handle);
+            }
+            mWatches.clear();
+            mRemoved.clear();
+            mFiles.stop();
+        }
+    }
+
+    /**
+     * Prints each watched path and how its changes are detected: fifo, sysfs while an
+     * attribute has not notified yet, notify once it has, or timer.
+     */
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            for (Watch w : mWatches) {
+                pw.println("  " + w.path + ": " + (w.notifies ? "notify" : KIND_NAMES[w.kind]));
+            }
+        }
+    }
+
+    private void loop() {
+        Watch[] polled = new Watch[0];
+        Watch[] timed = new Watch[0];
+        int[] handles = new int[0];
+        int[] events = new int[0];
+        int[] revents = new int[0];
+        ArrayList<Watch> unprimed = new ArrayList<>();
+        long nextTimerRun = 0;
+
+        while (mRunning) {
+            synchronized (mLock) {
+                if (mWatchesChanged) {
+                    mWatchesChanged = false;
+                    ArrayList<Watch> p = new ArrayList<>();
+                    ArrayList<Watch> t = new ArrayList<>();
+                    for (Watch w : mWatches) {
+                        if (w.kind != KIND_TIMER) {
+                            p.add(w);
+                        }
+                        if (w.isTimed()) {
+                            t.add(w);
+                        }
+                        if (!w.primed) {
+                            unprimed.add(w);
+                        }
+                    }
+                    polled = p.toArray(new Watch[p.size()]);
+                    timed = t.toArray(new Watch[t.size()]);
+                    handles = new int[polled.length];
+                    events = new int[polled.length];
+                    revents = new int[polled.length];
+                    for (int i = 0; i < polled.length; i++) {
+                        handles[i] = polled[i].handle;
+                        events[i] = polled[i].kind == KIND_FIFO ?
+                                PollableFiles.EVENT_READABLE : PollableFiles.EVENT_CHANGED;
+                    }
+                    nextTimerRun = mFiles.uptimeMillis() + mTimerIntervalMs;
+                    for (Watch w : mRemoved) {
+                        mFiles.close(w.handle);
+                    }
+                    mRemoved.clear();
+                }
+            }
+
+            // Report current values. For sysfs this read also acknowledges any pending
+            // notification, as sysfs_notify() requires before polling.
+            for (Watch w : unprimed) {
+                w.primed = true;
+                if (w.kind != KIND_FIFO && !isRemoved(w)) {
+                    dispatchIfChanged(w, readContents(w));
+                }
+            }
+            unprimed.clear();
+
+            int timeout = -1;
+            if (timed.length > 0) {
+                timeout = (int) Math.max(0, nextTimerRun - mFiles.uptimeMillis());
+            }
+
+            try {
+                mFiles.poll(handles, events, revents, timeout);
+            } catch (IOException e) {
+                mFiles.log("poll failed", e);
+                mRunning = false;
+                continue;
+            }
+
+            for (int i = 0; i < polled.length; i++) {
+                Watch w = polled[i];
+                if (revents[i] == 0 || isRemoved(w)) continue;
+                if (w.kind == KIND_FIFO) {
+                    readFifo(w);
+                } else {
+                    onNotified(w);
+                }
+            }
+
+            if (timed.length > 0 && mFiles.uptimeMillis() >= nextTimerRun) {
+                for (Watch w : timed) {
+                    if (!isRemoved(w)) {
+                        onTimer(w);
+                    }
+                }
+                nextTimerRun = mFiles.uptimeMillis() + mTimerIntervalMs;
+            }
+        }
+    }
+
+    private void onNotified(Watch w) {
+        w.suspect = false;
+        if (!w.notifies) {
+            w.notifies = true;
+            // No need to re-read it on the timer anymore
+            synchronized (mLock) {
+                mWatchesChanged = true;
+            }
+        }
+        dispatchIfChanged(w, readContents(w));
+    }
+
+    private void onTimer(Watch w) {
+        if (w.kind == KIND_SYSFS) {
+            if (w.notifies) return;
+            if (!w.suspect) {
+                w.suspect = dispatchIfChanged(w, readContents(w));
+                return;
+            }
+            // A whole interval passed after a change without a notification
+            mFiles.log("No change notification from " + w.path + ", polling it", null);
+            w.kind = KIND_TIMER;
+            synchronized (mLock) {
+                mWatchesChanged = true;
+            }
+        }
+        dispatchIfChanged(w, readContents(w));
+    }
+
+    private void readFifo(Watch w) {
+        int length;
+        try {
+            length = mFiles.read(w.handle, w.buffer);
+        } catch (IOException e) {
+            mFiles.log("Could not read " + w.path, e);
+            return;
+        }
+        if (length == 0) {
+            // All writers are gone; the FIFO would otherwise report a hang-up forever
+            unwatch(w.path, w.listener);
+            return;
+        }
+        if (length > 0) {
+            w.listener.onChanged(w.path, w.buffer, length);
+        }
+    }
+
+    private int readContents(Watch w) {
+        try {
+            return mFiles.pread(w.handle, w.buffer);
+        } catch (IOException e) {
+            mFiles.log("Could not read " + w.path, e);
+            return -1;
+        }
+    }
+
+    private static boolean dispatchIfChanged(Watch w, int length) {
+        if (length < 0 || sameContents(w, length)) {
+            return false;
+        }
+        System.arraycopy(w.buffer, 0, w.last, 0, length);
+        w.lastLength = length;
+        w.listener.onChanged(w.path, w.buffer, length);
+        return true;
+    }
+
+    private boolean isRemoved(Watch w) {
+        synchronized (mLock) {
+            return mRemoved.contains(w);
+        }
+    }
+
+    private static boolean sameContents(Watch w, int length) {
+        if (length != w.lastLength) return false;
+        for (int i = 0; i < length; i++) {
+            if (w.buffer[i] != w.last[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,148 @@
+package org.ifaa.android.manager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the IFAAManager entry points against the in-memory services.
+ *
+ * Only the calls that reach the service take the latency, failure and command size
+ * parameters; calls answered from the client's own state only vary by service.
+ *
+ * Run with "-prof gc" to get the allocation per call (gc.alloc.rate.norm), e.g.
+ *   ifaa-manager-bench -prof gc -p service=soter -p latencyUs=0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IFAAClientBenchmark {
+
+    /** A client whose calls are answered without reaching the service. */
+    @State(Scope.Benchmark)
+    public static class LocalState {
+        @Param({"soter", "mlipay"})
+        public String service;
+
+        IFAAClient client;
+
+        @Setup
+        public void setup() {
+            client = createClient(service, 0, 0);
+        }
+    }
+
+    /** A client calling into a service that is slow or fails. */
+    @State(Scope.Benchmark)
+    public static class ServiceState {
+        @Param({"soter", "mlipay"})
+        public String service;
+
+        /** Time each service call takes, in microseconds. */
+        @Param({"0", "100"})
+        public long latencyUs;
+
+        /** Probability that a service call fails and is retried. */
+        @Param({"0", "0.01"})
+        public float failure;
+
+        IFAAClient client;
+
+        @Setup
+        public void setup() {
+            client = createClient(service, latencyUs, failure);
+        }
+    }
+
+    /** ServiceState plus a processCmdV2 command. */
+    @State(Scope.Benchmark)
+    public static class CommandState {
+        @Param({"soter", "mlipay"})
+        public String service;
+
+        @Param({"0", "100"})
+        public long latencyUs;
+
+        @Param({"0", "0.01"})
+        public float failure;
+
+        /** Size of the processCmdV2 command. */
+        @Param({"256", "65536"})
+        public int cmdSize;
+
+        IFAAClient client;
+        byte[] cmd;
+
+        @Setup
+        public void setup() {
+            client = createClient(service, latencyUs, failure);
+            cmd = new byte[cmdSize];
+            for (int i = 0; i < cmd.length; i++) {
+                cmd[i] = (byte) i;
+            }
+        }
+    }
+
+    static IFAAClient createClient(String service, long latencyUs, float failure) {
+        HostIFAAPlatform platform = new HostIFAAPlatform();
+        platform.setProperty("persist.vendor.sys.fp.fod.location.X_Y", "445,1260");
+        platform.setProperty("persist.vendor.sys.fp.fod.size.width_height", "190,190");
+        platform.setProperty("persist.vendor.sys.pay.ifaa", "1");
+        platform.setProperty("persist.sys.fp.fod.location.X_Y", "445,1260");
+        platform.setProperty("persist.sys.fp.fod.size.width_height", "190,190");
+        platform.setProperty("persist.sys.ifaa", "1");
+        platform.setEnrollmentKey(1);
+
+        FakeIFAAService fake;
+        if ("mlipay".equals(service)) {
+            platform.setSdkInt(27);
+            fake = new FakeMlipayService();
+        } else {
+            FakeSoterService soter = new FakeSoterService();
+            soter.setSharedSupported(true);
+            soter.setBatchSupported(true);
+            fake = soter;
+        }
+        fake.setLatencyMicros(latencyUs);
+        fake.setFailureProbability(failure);
+        return new IFAAClient(fake, platform, 4, true);
+    }
+
+    @Benchmark
+    public byte[] processCmdV2(CommandState state) {
+        return state.client.processCmd(state.cmd);
+    }
+
+    @Benchmark
+    public int[] getIDListCached(LocalState state) {
+        return state.client.getIDList(IFAAClient.IFAA_TYPE_FINGER);
+    }
+
+    @Benchmark
+    public int[] getIDListUncached(ServiceState state) {
+        state.client.invalidateIDList();
+        return state.client.getIDList(IFAAClient.IFAA_TYPE_FINGER);
+    }
+
+    @Benchmark
+    public String getExtInfo(LocalState state) {
+        return state.client.getExtInfo(IFAAClient.IFAA_TYPE_SENSOR_FOD);
+    }
+
+    @Benchmark
+    public int getSupportBIOTypes(LocalState state) {
+        return state.client.getSupportBIOTypes();
+    }
+}
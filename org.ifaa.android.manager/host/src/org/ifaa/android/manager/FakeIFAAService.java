@@ -0,0 +1,134 @@
+package org.ifaa.android.manager;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory IFAATransport standing in for an IFAA service, with fault injection.
+ *
+ * Every call takes the configured latency. It then fails with the failure probability,
+ * like a RemoteException, or kills the service with the death probability. A dead
+ * service fails every call and makes awaitService wait until it restarts after the
+ * restart delay; both the death and the restart are reported to the client like a
+ * binder death and reconnect.
+ *
+ * The TA is modelled as an echo: the reply to a command is the command itself.
+ */
+public abstract class FakeIFAAService implements IFAATransport {
+    private volatile long mLatencyNanos;
+    private volatile float mFailureProbability;
+    private volatile float mDeathProbability;
+    private volatile long mRestartMs = 100;
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private long mRestartAtNanos;
+    private boolean mDead;
+    private volatile Runnable mOnServiceChanged;
+
+    private volatile long mCalls;
+    private volatile long mFailures;
+    private volatile long mDeaths;
+
+    public void setLatencyMicros(long latencyUs) {
+        mLatencyNanos = latencyUs * 1000;
+    }
+
+    public void setFailureProbability(float probability) {
+        mFailureProbability = probability;
+    }
+
+    public void setDeathProbability(float probability) {
+        mDeathProbability = probability;
+    }
+
+    public void setRestartMs(long restartMs) {
+        mRestartMs = restartMs;
+    }
+
+    public long getCalls() {
+        return mCalls;
+    }
+
+    public long getFailures() {
+        return mFailures;
+    }
+
+    public long getDeaths() {
+        return mDeaths;
+    }
+
+    public void start(Runnable onServiceChanged) {
+        mOnServiceChanged = onServiceChanged;
+    }
+
+    public boolean awaitService(long timeoutMs) {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        while (true) {
+            long restartAt;
+            synchronized (mLock) {
+                if (!mDead) return true;
+                restartAt = mRestartAtNanos;
+            }
+            long now = System.nanoTime();
+            if (now - restartAt >= 0) {
+                restart();
+                return true;
+            }
+            if (now - deadline >= 0) return false;
+            LockSupport.parkNanos(Math.min(restartAt, deadline) - now);
+        }
+    }
+
+    private void restart() {
+        synchronized (mLock) {
+            if (!mDead) return;
+            mDead = false;
+        }
+        notifyServiceChanged();
+    }
+
+    private void notifyServiceChanged() {
+        Runnable onServiceChanged = mOnServiceChanged;
+        if (onServiceChanged != null) {
+            onServiceChanged.run();
+        }
+    }
+
+    /**
+     * Runs the fault injection for one call. Subclasses call it before doing any work.
+     */
+    protected final void enter() throws IFAATransportException {
+        mCalls++;
+        long latency = mLatencyNanos;
+        if (latency > 0) {
+            LockSupport.parkNanos(latency);
+        }
+        synchronized (mLock) {
+            if (mDead) {
+                mFailures++;
+                throw new IFAATransportException("service is dead");
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (mDeathProbability > 0 && random.nextFloat() < mDeathProbability) {
+            synchronized (mLock) {
+                mDead = true;
+                mRestartAtNanos = System.nanoTime() + mRestartMs * 1000000;
+            }
+            mDeaths++;
+            mFailures++;
+            notifyServiceChanged();
+            throw new IFAATransportException("service died");
+        }
+        if (mFailureProbability > 0 && random.nextFloat() < mFailureProbability) {
+            mFailures++;
+            throw new IFAATransportException("injected failure");
+        }
+    }
+
+    public byte[] processCmd(byte[] param) throws IFAATransportException {
+        enter();
+        return param != null ? param.clone() : null;
+    }
+}
@@ -0,0 +1,21 @@
+package org.ifaa.android.manager;
+
+import java.util.List;
+
+/**
+ * Fake of vendor.xiaomi.hardware.mlipay@1.0::IMlipayService used before SDK 28. Like
+ * IFAAHidlTransport it only carries processCmd, everything else is unsupported.
+ */
+public final class FakeMlipayService extends FakeIFAAService {
+    public byte[] processCmdShared(byte[] param) {
+        return USE_PROCESS_CMD;
+    }
+
+    public boolean processCmdBatch(List<byte[]> params, byte[][] replies, int[] status) {
+        return false;
+    }
+
+    public int[] getIDList(int bioType) {
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+package org.ifaa.android.manager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Fake of the soter IIFAAService used from SDK 28 on. The batch and shared memory
+ * extensions can be advertised or not, like the meta-data IFAABinderTransport reads.
+ *
+ * Shared memory commands follow IFAABinderTransport's protocol over HostSharedMemory
+ * regions: the reply is written back into the command's region when it fits and into a
+ * region of the service's own otherwise. Replies can be padded to force the latter, and
+ * the service can be made to claim a reply longer than its region.
+ */
+public final class FakeSoterService extends FakeIFAAService {
+    private volatile int[] mIdList = {1, 2, 3};
+    private volatile boolean mBatchSupported;
+    private volatile boolean mSharedSupported;
+    private volatile int mReplyPadding;
+    private volatile boolean mOverstateReplyLength;
+
+    public void setIdList(int[] idList) {
+        mIdList = idList.clone();
+    }
+
+    public void setBatchSupported(boolean supported) {
+        mBatchSupported = supported;
+    }
+
+    public void setSharedSupported(boolean supported) {
+        mSharedSupported = supported;
+    }
+
+    /**
+     * Makes shared memory replies this many bytes longer than the command.
+     */
+    public void setReplyPadding(int bytes) {
+        mReplyPadding = bytes;
+    }
+
+    /**
+     * Makes shared memory replies claim one byte more than the region holding them.
+     */
+    public void setOverstateReplyLength(boolean overstate) {
+        mOverstateReplyLength = overstate;
+    }
+
+    /**
+     * What the service puts in the binder reply: the reply length, negative on failure,
+     * and its own region or null when the reply went back into the caller's.
+     */
+    private static final class SharedReply {
+        final int length;
+        final HostSharedMemory region;
+
+        SharedReply(int length, HostSharedMemory region) {
+            this.length = length;
+            this.region = region;
+        }
+    }
+
+    public byte[] processCmdShared(byte[] param) throws IFAATransportException {
+        if (!mSharedSupported) {
+            return USE_PROCESS_CMD;
+        }
+
+        HostSharedMemory region = null;
+        SharedReply reply = null;
+        try {
+            region = HostSharedMemory.create("ifaa_cmd", param.length);
+            ByteBuffer buf = region.mapReadWrite();
+            buf.put(param);
+            HostSharedMemory.unmap(buf);
+
+            // Only the region and the length cross the call
+            reply = serveShared(region, param.length);
+            if (reply.length < 0) {
+                return null;
+            }
+            HostSharedMemory src = reply.region != null ? reply.region : region;
+            if (reply.length > src.getSize()) {
+                return null;
+            }
+            byte[] res = new byte[reply.length];
+            buf = src.mapReadOnly();
+            buf.get(res);
+            HostSharedMemory.unmap(buf);
+            return res;
+        } catch (IOException e) {
+            return USE_PROCESS_CMD;
+        } finally {
+            if (region != null) {
+                region.close();
+            }
+            if (reply != null && reply.region != null) {
+                reply.region.close();
+            }
+        }
+    }
+
+    private SharedReply serveShared(HostSharedMemory region, int length)
+            throws IFAATransportException, IOException {
+        enter();
+        if (length > region.getSize()) {
+            return new SharedReply(-1, null);
+        }
+        ByteBuffer buf = region.mapReadWrite();
+        byte[] param = new byte[length];
+        buf.get(param);
+        // The TA echoes the command, padded if asked to
+        byte[] res = new byte[length + mReplyPadding];
+        System.arraycopy(param, 0, res, 0, length);
+
+        HostSharedMemory replyRegion = null;
+        if (res.length <= region.getSize()) {
+            buf.clear();
+            buf.put(res);
+        } else {
+            replyRegion = HostSharedMemory.create("ifaa_reply", res.length);
+            ByteBuffer replyBuf = replyRegion.mapReadWrite();
+            replyBuf.put(res);
+            HostSharedMemory.unmap(replyBuf);
+        }
+        HostSharedMemory.unmap(buf);
+        return new SharedReply(mOverstateReplyLength ? res.length + 1 : res.length, replyRegion);
+    }
+
+    public boolean processCmdBatch(List<byte[]> params, byte[][] replies, int[] status)
+            throws IFAATransportException {
+        if (!mBatchSupported) {
+            return false;
+        }
+        enter();
+        for (int i = 0; i < params.size(); i++) {
+            byte[] param = params.get(i);
+            replies[i] = param != null ? param.clone() : null;
+            status[i] = IFAABatchResult.STATUS_OK;
+        }
+        return true;
+    }
+
+    public int[] getIDList(int bioType) throws IFAATransportException {
+        enter();
+        return mIdList.clone();
+    }
+}
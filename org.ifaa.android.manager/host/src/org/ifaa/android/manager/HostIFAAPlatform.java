@@ -0,0 +1,87 @@
+package org.ifaa.android.manager;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IFAAPlatform for a plain JVM. System properties come from an in-memory map, the clock
+ * from System.nanoTime and logs go to stderr only when verbose.
+ */
+public final class HostIFAAPlatform implements IFAAPlatform {
+    private final ConcurrentHashMap<String, String> mProperties = new ConcurrentHashMap<>();
+    private final long mStartNanos = System.nanoTime();
+    private volatile int mSdkInt = 29;
+    private volatile boolean mVerbose;
+    private volatile long mEnrollmentKey = ENROLLMENT_KEY_UNKNOWN;
+
+    public void setProperty(String key, String value) {
+        mProperties.put(key, value);
+    }
+
+    /**
+     * Selects the property names the client reads: below 28 the pre-vendor ones.
+     */
+    public void setSdkInt(int sdkInt) {
+        mSdkInt = sdkInt;
+    }
+
+    public void setVerbose(boolean verbose) {
+        mVerbose = verbose;
+    }
+
+    /**
+     * Changes the value reported as enrollment key, e.g. to simulate enrolling a finger.
+     */
+    public void setEnrollmentKey(long key) {
+        mEnrollmentKey = key;
+    }
+
+    public long elapsedRealtime() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    public int getSdkInt() {
+        return mSdkInt;
+    }
+
+    public String getDeviceModel() {
+        return "host-jvm";
+    }
+
+    public String getProperty(String key, String def) {
+        String value = mProperties.get(key);
+        return value != null ? value : def;
+    }
+
+    public int getIntProperty(String key, int def) {
+        try {
+            return Integer.parseInt(getProperty(key, ""));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public long getLongProperty(String key, long def) {
+        try {
+            return Long.parseLong(getProperty(key, ""));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public boolean isDebugLoggable(String tag) {
+        return mVerbose;
+    }
+
+    public void logDebug(String tag, String msg) {
+        System.err.println("D " + tag + ": " + msg);
+    }
+
+    public void logError(String tag, String msg, Throwable tr) {
+        if (!mVerbose) return;
+        System.err.println("E " + tag + ": " + msg + (tr != null ? " " + tr : ""));
+    }
+
+    public long getEnrollmentKey() {
+        return mEnrollmentKey;
+    }
+}
@@ -0,0 +1,69 @@
+package org.ifaa.android.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Host stand-in for android.os.SharedMemory. Like a memfd, a region is an unlinked file
+ * that only its open descriptor keeps alive, mapped into memory; its size is fixed at
+ * creation.
+ */
+public final class HostSharedMemory implements AutoCloseable {
+    private final RandomAccessFile mFile;
+    private final int mSize;
+
+    private HostSharedMemory(RandomAccessFile file, int size) {
+        mFile = file;
+        mSize = size;
+    }
+
+    public static HostSharedMemory create(String name, int size) throws IOException {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be greater than zero");
+        }
+        File path = File.createTempFile(name, null);
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        path.delete();
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        return new HostSharedMemory(file, size);
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    public ByteBuffer mapReadWrite() throws IOException {
+        return map(FileChannel.MapMode.READ_WRITE);
+    }
+
+    public ByteBuffer mapReadOnly() throws IOException {
+        return map(FileChannel.MapMode.READ_ONLY);
+    }
+
+    private ByteBuffer map(FileChannel.MapMode mode) throws IOException {
+        return mFile.getChannel().map(mode, 0, mSize);
+    }
+
+    /**
+     * The JVM unmaps a buffer once it is collected, so this only documents intent.
+     */
+    public static void unmap(ByteBuffer buffer) {
+    }
+
+    @Override
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // Ignored, the region is gone either way
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.ifaa.android.manager;
+
+import android.hardware.fingerprint.Fingerprint;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.Build.VERSION;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.Slog;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * IFAAPlatform backed by the framework.
+ */
+final class AndroidIFAAPlatform implements IFAAPlatform {
+    private final FingerprintManager mFingerprintManager;
+    private final String mDevModel = Build.MANUFACTURER + "-" + Build.DEVICE;
+
+    /**
+     * @param fingerprintManager used to notice enrollment changes, or null if unavailable
+     */
+    AndroidIFAAPlatform(FingerprintManager fingerprintManager) {
+        mFingerprintManager = fingerprintManager;
+    }
+
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public int getSdkInt() {
+        return VERSION.SDK_INT;
+    }
+
+    public String getDeviceModel() {
+        return mDevModel;
+    }
+
+    public String getProperty(String key, String def) {
+        return SystemProperties.get(key, def);
+    }
+
+    public int getIntProperty(String key, int def) {
+        return SystemProperties.getInt(key, def);
+    }
+
+    public long getLongProperty(String key, long def) {
+        return SystemProperties.getLong(key, def);
+    }
+
+    public boolean isDebugLoggable(String tag) {
+        return Log.isLoggable(tag, Log.DEBUG);
+    }
+
+    public void logDebug(String tag, String msg) {
+        Slog.d(tag, msg);
+    }
+
+    public void logError(String tag, String msg, Throwable tr) {
+        if (tr != null) {
+            Slog.e(tag, msg, tr);
+        } else {
+            Slog.e(tag, msg);
+        }
+    }
+
+    public long getEnrollmentKey() {
+        if (mFingerprintManager == null) {
+            return ENROLLMENT_KEY_UNKNOWN;
+        }
+        List<Fingerprint> enrolled;
+        try {
+            enrolled = mFingerprintManager.getEnrolledFingerprints();
+        } catch (RuntimeException e) {
+            // e.g. a SecurityException for callers without USE_FINGERPRINT
+            return ENROLLMENT_KEY_UNKNOWN;
+        }
+        if (enrolled == null) {
+            return ENROLLMENT_KEY_UNKNOWN;
+        }
+        int[] ids = new int[enrolled.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = enrolled.get(i).getBiometricId();
+        }
+        Arrays.sort(ids);
+        return ((long) ids.length << 32) | (Arrays.hashCode(ids) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,23 @@
+package org.ifaa.android.manager;
+
+import java.util.Arrays;
+
+/**
+ * Per-command outcome of IFAAManagerImpl.processCmdBatch, in the order the commands were
+ * given.
+ */
+public final class IFAABatchResult {
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_FAILED = -1;
+    public static final int STATUS_NOT_RUN = -2;
+    public static final int STATUS_REJECTED = -3;
+
+    public final byte[][] replies;
+    public final int[] status;
+
+    IFAABatchResult(int count) {
+        replies = new byte[count][];
+        status = new int[count];
+        Arrays.fill(status, STATUS_NOT_RUN);
+    }
+}
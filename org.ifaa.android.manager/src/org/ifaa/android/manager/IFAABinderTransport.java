@@ -0,0 +1,250 @@
+package org.ifaa.android.manager;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Slog;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * IFAATransport over the soter IIFAAService binder, used from SDK 28 on.
+ */
+final class IFAABinderTransport implements IFAATransport {
+    private static final String TAG = "IfaaBinderTransport";
+
+    private static final int CODE_PROCESS_CMD = 1;
+    private static final int CODE_GETIDLIST_CMD = 2;
+    // Last transaction code IIFAAService itself uses
+    private static final int CODE_IIFAA_LAST = 8;
+
+    /**
+     * Meta-data on the soter IFAAService component carrying the transaction codes of the
+     * batched and shared memory processCmd extensions. Neither is part of IIFAAService,
+     * so services that do not declare a code never receive the call.
+     */
+    static final String META_PROCESS_CMD_BATCH =
+            "org.ifaa.android.manager.transaction.PROCESS_CMD_BATCH";
+    static final String META_PROCESS_CMD_SHARED =
+            "org.ifaa.android.manager.transaction.PROCESS_CMD_SHARED";
+
+    private static final int CODE_UNKNOWN = -1;
+    private static final int CODE_UNSUPPORTED = 0;
+
+    private static final String mIfaaActName = "org.ifaa.android.manager.IFAAService";
+    private static final String mIfaaInterfaceDesc = "org.ifaa.android.manager.IIFAAService";
+    private static final String mIfaaPackName = "com.tencent.soter.soterserver";
+
+    private final Context mContext;
+    private IFAAServiceConnector mConnector;
+
+    private volatile int mBatchCode = CODE_UNKNOWN;
+    private volatile int mSharedCode = CODE_UNKNOWN;
+
+    IFAABinderTransport(Context context) {
+        mContext = context;
+    }
+
+    public void start(Runnable onServiceChanged) {
+        mConnector = new IFAAServiceConnector(mContext, mIfaaPackName, mIfaaActName, () -> {
+            // The service may have been updated along with what it advertises
+            mBatchCode = CODE_UNKNOWN;
+            mSharedCode = CODE_UNKNOWN;
+            onServiceChanged.run();
+        });
+        mConnector.start();
+    }
+
+    public boolean awaitService(long timeoutMs) {
+        return mConnector.getService() != null || mConnector.awaitService(timeoutMs) != null;
+    }
+
+    /**
+     * Returns the transaction code the service advertises under the given meta-data key,
+     * or CODE_UNSUPPORTED if it declares none or one that clashes with IIFAAService.
+     */
+    private int advertisedCode(String key) {
+        ServiceInfo info;
+        try {
+            info = mContext.getPackageManager().getServiceInfo(
+                    new ComponentName(mIfaaPackName, mIfaaActName), PackageManager.GET_META_DATA);
+        } catch (PackageManager.NameNotFoundException e) {
+            return CODE_UNSUPPORTED;
+        }
+        if (info == null || info.metaData == null) {
+            return CODE_UNSUPPORTED;
+        }
+        int code = info.metaData.getInt(key, CODE_UNSUPPORTED);
+        if (code <= CODE_IIFAA_LAST || code > IBinder.LAST_CALL_TRANSACTION) {
+            if (code != CODE_UNSUPPORTED) {
+                Slog.w(TAG, "ignoring invalid transaction code " + code + " for " + key);
+            }
+            return CODE_UNSUPPORTED;
+        }
+        return code;
+    }
+
+    private int batchCode() {
+        int code = mBatchCode;
+        if (code == CODE_UNKNOWN) {
+            code = advertisedCode(META_PROCESS_CMD_BATCH);
+            mBatchCode = code;
+        }
+        return code;
+    }
+
+    private int sharedCode() {
+        int code = mSharedCode;
+        if (code == CODE_UNKNOWN) {
+            code = advertisedCode(META_PROCESS_CMD_SHARED);
+            mSharedCode = code;
+        }
+        return code;
+    }
+
+    private boolean transact(int code, Parcel data, Parcel reply)
+            throws IFAATransportException {
+        IBinder service = mConnector.getService();
+        if (service == null) {
+            throw new IFAATransportException("IFAA service not connected");
+        }
+        try {
+            return service.transact(code, data, reply, 0);
+        } catch (RemoteException e) {
+            throw new IFAATransportException(e);
+        }
+    }
+
+    public byte[] processCmd(byte[] param) throws IFAATransportException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(mIfaaInterfaceDesc);
+            data.writeByteArray(param);
+            transact(CODE_PROCESS_CMD, data, reply);
+            reply.readException();
+            return reply.createByteArray();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    public int[] getIDList(int bioType) throws IFAATransportException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(mIfaaInterfaceDesc);
+            data.writeInt(bioType);
+            transact(CODE_GETIDLIST_CMD, data, reply);
+            reply.readException();
+            return reply.createIntArray();
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    public boolean processCmdBatch(List<byte[]> params, byte[][] replies, int[] status)
+            throws IFAATransportException {
+        int code = batchCode();
+        if (code == CODE_UNSUPPORTED) {
+            return false;
+        }
+
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(mIfaaInterfaceDesc);
+            data.writeInt(params.size());
+            for (byte[] param : params) {
+                data.writeByteArray(param);
+            }
+            // An unknown code is rejected before the service runs anything
+            if (!transact(code, data, reply)) {
+                Slog.w(TAG, "service advertised processCmdBatch but rejected it");
+                mBatchCode = CODE_UNSUPPORTED;
+                return false;
+            }
+            reply.readException();
+            int count = Math.min(reply.readInt(), params.size());
+            for (int i = 0; i < count; i++) {
+                status[i] = reply.readInt();
+                replies[i] = reply.createByteArray();
+            }
+            return true;
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Passes the TA buffer through an ashmem region so only its handle and length cross binder.
+     * The service answers with the reply length and either a region of its own holding the
+     * reply or null when it wrote the reply back into ours.
+     */
+    public byte[] processCmdShared(byte[] param) throws IFAATransportException {
+        int code = sharedCode();
+        if (code == CODE_UNSUPPORTED) {
+            return USE_PROCESS_CMD;
+        }
+
+        SharedMemory region = null;
+        SharedMemory replyRegion = null;
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            region = SharedMemory.create("ifaa_cmd", param.length);
+            ByteBuffer buf = region.mapReadWrite();
+            buf.put(param);
+            SharedMemory.unmap(buf);
+
+            data.writeInterfaceToken(mIfaaInterfaceDesc);
+            data.writeTypedObject(region, 0);
+            data.writeInt(param.length);
+            // An unknown code is rejected before the service runs anything
+            if (!transact(code, data, reply)) {
+                Slog.w(TAG, "service advertised shared memory commands but rejected them");
+                mSharedCode = CODE_UNSUPPORTED;
+                return USE_PROCESS_CMD;
+            }
+            reply.readException();
+
+            int length = reply.readInt();
+            replyRegion = reply.readTypedObject(SharedMemory.CREATOR);
+            if (length < 0) {
+                return null;
+            }
+            SharedMemory src = replyRegion != null ? replyRegion : region;
+            if (length > src.getSize()) {
+                Slog.e(TAG, "processCmdShared reply length " + length + " exceeds region");
+                return null;
+            }
+            byte[] res = new byte[length];
+            buf = src.mapReadOnly();
+            buf.get(res);
+            SharedMemory.unmap(buf);
+            return res;
+        } catch (ErrnoException e) {
+            Slog.e(TAG, "processCmdShared shared memory unavailable. ", e);
+            return USE_PROCESS_CMD;
+        } finally {
+            data.recycle();
+            reply.recycle();
+            if (region != null) {
+                region.close();
+            }
+            if (replyRegion != null) {
+                replyRegion.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package org.ifaa.android.manager;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The IFAA client behind IFAAManagerImpl: retries, the fingerprint ID list cache,
+ * transaction limits, accounting and the property backed queries. It only talks to the
+ * platform through IFAAPlatform and to the service through IFAATransport, so it also
+ * runs on a plain JVM against fake services.
+ */
+final class IFAAClient {
+    private static final String TAG = "IfaaManagerImpl";
+
+    static final int IFAA_TYPE_FINGER = 1;
+    static final int IFAA_TYPE_IRIS = 2;
+    static final int IFAA_TYPE_SENSOR_FOD = 16;
+
+    private static final int MAX_RETRIES = 10;
+    private static final long SERVICE_WAIT_MS = 300;
+
+    // How long after startBIOManager the user may still be changing fingerprints
+    private static final long ENROLLMENT_WINDOW_MS = 10 * 60 * 1000;
+
+    private static final class IdListEntry {
+        final int[] idList;
+        final long fetchedAt;
+        final long enrollmentKey;
+
+        IdListEntry(int[] idList, long fetchedAt, long enrollmentKey) {
+            this.idList = idList;
+            this.fetchedAt = fetchedAt;
+            this.enrollmentKey = enrollmentKey;
+        }
+    }
+
+    private final IFAATransport mTransport;
+    private final IFAAPlatform mPlatform;
+    private final int mIfaaVersion;
+    private final boolean mIsFod;
+
+    // TA buffers at least this large travel through shared memory instead of the parcel
+    private final int mSharedMemoryThreshold;
+
+    // Caps calls to the service in flight from this process; callers beyond the cap
+    // queue in arrival order for up to mTransactQueueMs and are then rejected
+    private final long mTransactQueueMs;
+    private final Semaphore mInflight;
+
+    // Fingerprint ID list served to callers without any IPC for mIdListTtlMs. After that
+    // the enrolled fingerprints are checked, and the TA is only asked again if they changed
+    private final long mIdListTtlMs;
+    private final Object mIdListLock = new Object();
+    private final AtomicInteger mIdListGeneration = new AtomicInteger();
+    private volatile IdListEntry mIdListCache = null;
+    private volatile long mEnrollmentPendingUntil = 0;
+
+    private final IFAAStats mStats = new IFAAStats();
+    private final IFAATrace mTrace;
+
+    /**
+     * @param ifaaVersion the IFAA interface version reported by getVersion
+     * @param isFod whether the fingerprint sensor sits under the display
+     */
+    IFAAClient(IFAATransport transport, IFAAPlatform platform, int ifaaVersion,
+            boolean isFod) {
+        mTransport = transport;
+        mPlatform = platform;
+        mIfaaVersion = ifaaVersion;
+        mIsFod = isFod;
+        mSharedMemoryThreshold = Math.max(1,
+                platform.getIntProperty("persist.vendor.sys.pay.ifaa.shm_threshold", 32 * 1024));
+        mTransactQueueMs = platform.getLongProperty("persist.vendor.sys.pay.ifaa.queue_ms", 1000);
+        mInflight = new Semaphore(Math.max(1,
+                platform.getIntProperty("persist.vendor.sys.pay.ifaa.max_inflight", 4)), true);
+        mIdListTtlMs = platform.getLongProperty(
+                "persist.vendor.sys.pay.ifaa.idlist_ttl_ms", 30 * 1000);
+        mTrace = new IFAATrace(TAG, platform);
+        mTransport.start(this::invalidateIDList);
+    }
+
+    private String initExtString() {
+        String xy;
+        String wh;
+
+        if (mPlatform.getSdkInt() >= 28) {
+            xy = mPlatform.getProperty("persist.vendor.sys.fp.fod.location.X_Y", "");
+            wh = mPlatform.getProperty("persist.vendor.sys.fp.fod.size.width_height", "");
+        } else {
+            xy = mPlatform.getProperty("persist.sys.fp.fod.location.X_Y", "");
+            wh = mPlatform.getProperty("persist.sys.fp.fod.size.width_height", "");
+        }
+
+        if (!validateVal(xy) || !validateVal(wh)) {
+            mPlatform.logError(TAG, "initExtString invalidate, xy:" + xy + " wh:" + wh, null);
+            return "";
+        }
+
+        try {
+            String[] splitXy = xy.split(",");
+            String[] splitWh = wh.split(",");
+            int startX = Integer.parseInt(splitXy[0]);
+            int startY = Integer.parseInt(splitXy[1]);
+            int width = Integer.parseInt(splitWh[0]);
+            int height = Integer.parseInt(splitWh[1]);
+            // Same text JSONObject produces for these keys, without needing org.json
+            return "{\"type\":0,\"fullView\":{\"startX\":" + startX + ",\"startY\":" + startY +
+                    ",\"width\":" + width + ",\"height\":" + height + ",\"navConflict\":true}}";
+        } catch (RuntimeException e) {
+            mPlatform.logError(TAG, "Exception , xy:" + xy + " wh:" + wh, e);
+            return "";
+        }
+    }
+
+    private boolean validateVal(String value) {
+        return !"".equalsIgnoreCase(value) && value.contains(",");
+    }
+
+    String getDeviceModel() {
+        mTrace.record(IFAATrace.EV_GET_DEVICE_MODEL, 0, 0);
+        return mPlatform.getDeviceModel();
+    }
+
+    String getExtInfo(int authType) {
+        String extStr = initExtString();
+        mTrace.record(IFAATrace.EV_GET_EXT_INFO, authType, extStr.length());
+        return extStr;
+    }
+
+    /**
+     * Drops the cached fingerprint ID list so the next getIDList call fetches it again.
+     */
+    void invalidateIDList() {
+        mIdListGeneration.incrementAndGet();
+        mIdListCache = null;
+    }
+
+    private boolean isFresh(IdListEntry entry, long now) {
+        return entry != null && now - entry.fetchedAt < mIdListTtlMs;
+    }
+
+    int[] getIDList(int bioType) {
+        if (IFAA_TYPE_FINGER != bioType) {
+            return new int[]{0};
+        }
+
+        long now = mPlatform.elapsedRealtime();
+        IdListEntry entry = mIdListCache;
+        if (isFresh(entry, now)) {
+            mTrace.record(IFAATrace.EV_GET_ID_LIST, entry.idList.length, 1);
+            return entry.idList.clone();
+        }
+
+        int[] idList;
+        // Concurrent misses queue up here and are served by the first caller's transaction
+        synchronized (mIdListLock) {
+            entry = mIdListCache;
+            int generation = mIdListGeneration.get();
+            long key = isFresh(entry, now) ? IFAAPlatform.ENROLLMENT_KEY_UNKNOWN :
+                    mPlatform.getEnrollmentKey();
+            if (isFresh(entry, now)) {
+                idList = entry.idList;
+            } else if (entry != null && key != IFAAPlatform.ENROLLMENT_KEY_UNKNOWN &&
+                    key == entry.enrollmentKey) {
+                // Same fingerprints as when the TA was asked, keep serving its answer
+                idList = entry.idList;
+                if (generation == mIdListGeneration.get()) {
+                    mIdListCache = new IdListEntry(idList, now, key);
+                }
+                mTrace.record(IFAATrace.EV_GET_ID_LIST, idList.length, 1);
+                return idList.clone();
+            } else {
+                idList = fetchIDList(bioType);
+                if (idList == null) {
+                    mTrace.record(IFAATrace.EV_GET_ID_LIST, -1, 0);
+                    return new int[]{0};
+                }
+                // While the user may still be enrolling in Settings, every call asks the TA
+                if (generation == mIdListGeneration.get() &&
+                        mPlatform.elapsedRealtime() >= mEnrollmentPendingUntil) {
+                    mIdListCache = new IdListEntry(idList, now, key);
+                } else {
+                    mIdListCache = null;
+                }
+            }
+        }
+
+        mTrace.record(IFAATrace.EV_GET_ID_LIST, idList.length, 0);
+        return idList.clone();
+    }
+
+    private int[] fetchIDList(int bioType) {
+        long start = mPlatform.elapsedRealtime();
+        int result = IFAAStats.RESULT_UNAVAILABLE;
+
+        for (int retry_count = MAX_RETRIES; retry_count > 0; retry_count--) {
+            if (!awaitService()) {
+                break;
+            }
+
+            try {
+                acquireTransactSlot();
+            } catch (RejectedExecutionException e) {
+                result = IFAAStats.RESULT_REJECTED;
+                break;
+            }
+            try {
+                int[] idList = mTransport.getIDList(bioType);
+                recordResult(IFAAStats.OP_GET_ID_LIST, idList != null ?
+                        IFAAStats.RESULT_OK : IFAAStats.RESULT_NULL_RETURN, start);
+                return idList;
+            } catch (IFAATransportException e) {
+                mPlatform.logError(TAG, "getIDList transact failed. ", e);
+                result = IFAAStats.RESULT_REMOTE_EXCEPTION;
+                mStats.recordRetry(IFAAStats.OP_GET_ID_LIST);
+            } finally {
+                mInflight.release();
+            }
+        }
+
+        recordResult(IFAAStats.OP_GET_ID_LIST, result, start);
+        mPlatform.logError(TAG, "getIDList, service unavailable", null);
+        return null;
+    }
+
+    int getSupportBIOTypes() {
+        int ifaaProp;
+        String fpVendor;
+
+        if (mPlatform.getSdkInt() >= 28) {
+            ifaaProp = mPlatform.getIntProperty("persist.vendor.sys.pay.ifaa", 0);
+            fpVendor = mPlatform.getProperty("persist.vendor.sys.fp.vendor", "");
+        } else {
+            ifaaProp = mPlatform.getIntProperty("persist.sys.ifaa", 0);
+            fpVendor = mPlatform.getProperty("persist.sys.fp.vendor", "");
+        }
+
+        int res = "none".equalsIgnoreCase(fpVendor) ?
+                ifaaProp & IFAA_TYPE_IRIS : ifaaProp & (IFAA_TYPE_FINGER | IFAA_TYPE_IRIS);
+
+        if ((res & IFAA_TYPE_FINGER) == IFAA_TYPE_FINGER && mIsFod) {
+            res |= IFAA_TYPE_SENSOR_FOD;
+        }
+
+        mTrace.record(IFAATrace.EV_GET_SUPPORT_BIO_TYPES, ifaaProp, res);
+        return res;
+    }
+
+    int getVersion() {
+        mTrace.record(IFAATrace.EV_GET_VERSION, mPlatform.getSdkInt(), mIfaaVersion);
+        return mIfaaVersion;
+    }
+
+    byte[] processCmd(byte[] param) {
+        byte[] res = transactCmd(param);
+        traceProcessCmd(param, res);
+        return res;
+    }
+
+    private byte[] transactCmd(byte[] param) {
+        long start = mPlatform.elapsedRealtime();
+        int result = IFAAStats.RESULT_UNAVAILABLE;
+
+        for (int retry_count = MAX_RETRIES; retry_count > 0; retry_count--) {
+            if (!awaitService()) {
+                break;
+            }
+
+            try {
+                acquireTransactSlot();
+            } catch (RejectedExecutionException e) {
+                result = IFAAStats.RESULT_REJECTED;
+                break;
+            }
+            try {
+                byte[] res = IFAATransport.USE_PROCESS_CMD;
+                if (param != null && param.length >= mSharedMemoryThreshold) {
+                    res = mTransport.processCmdShared(param);
+                }
+                if (res == IFAATransport.USE_PROCESS_CMD) {
+                    res = mTransport.processCmd(param);
+                }
+                recordResult(IFAAStats.OP_PROCESS_CMD, res != null ?
+                        IFAAStats.RESULT_OK : IFAAStats.RESULT_NULL_RETURN, start);
+                return res;
+            } catch (IFAATransportException e) {
+                mPlatform.logError(TAG, "processCmdV2 transact failed. ", e);
+                result = IFAAStats.RESULT_REMOTE_EXCEPTION;
+                mStats.recordRetry(IFAAStats.OP_PROCESS_CMD);
+            } finally {
+                mInflight.release();
+            }
+        }
+
+        recordResult(IFAAStats.OP_PROCESS_CMD, result, start);
+        mPlatform.logError(TAG, "processCmdV2, return null", null);
+        return null;
+    }
+
+    /**
+     * Sends several TA commands in one transaction when the service supports it,
+     * otherwise one after another through processCmd. A batch that fails in transit is
+     * reported as STATUS_FAILED rather than replayed, since part of it may have run.
+     */
+    IFAABatchResult processCmdBatch(List<byte[]> params) {
+        IFAABatchResult result = new IFAABatchResult(params.size());
+        if (params.isEmpty()) {
+            return result;
+        }
+
+        long start = mPlatform.elapsedRealtime();
+        if (!awaitService()) {
+            recordResult(IFAAStats.OP_PROCESS_BATCH, IFAAStats.RESULT_UNAVAILABLE, start);
+        } else {
+            try {
+                acquireTransactSlot();
+            } catch (RejectedExecutionException e) {
+                Arrays.fill(result.status, IFAABatchResult.STATUS_REJECTED);
+                recordResult(IFAAStats.OP_PROCESS_BATCH, IFAAStats.RESULT_REJECTED, start);
+                return result;
+            }
+            try {
+                if (mTransport.processCmdBatch(params, result.replies, result.status)) {
+                    recordResult(IFAAStats.OP_PROCESS_BATCH, IFAAStats.RESULT_OK, start);
+                    return result;
+                }
+            } catch (IFAATransportException e) {
+                // Some commands may already have run in the TA, so none of them is replayed
+                mPlatform.logError(TAG, "processCmdBatch transact failed. ", e);
+                for (int i = 0; i < result.status.length; i++) {
+                    if (result.status[i] == IFAABatchResult.STATUS_NOT_RUN) {
+                        result.status[i] = IFAABatchResult.STATUS_FAILED;
+                    }
+                }
+                recordResult(IFAAStats.OP_PROCESS_BATCH,
+                        IFAAStats.RESULT_REMOTE_EXCEPTION, start);
+                return result;
+            } finally {
+                mInflight.release();
+            }
+        }
+
+        for (int i = 0; i < params.size(); i++) {
+            result.replies[i] = processCmd(params.get(i));
+            result.status[i] = result.replies[i] != null ?
+                    IFAABatchResult.STATUS_OK : IFAABatchResult.STATUS_FAILED;
+        }
+        return result;
+    }
+
+    /**
+     * Takes a slot from mInflight; callers must release it after.
+     * @throws RejectedExecutionException if no slot frees up within mTransactQueueMs
+     */
+    private void acquireTransactSlot() {
+        if (mInflight.tryAcquire()) {
+            return;
+        }
+
+        long start = mPlatform.elapsedRealtime();
+        boolean acquired = false;
+        try {
+            acquired = mInflight.tryAcquire(mTransactQueueMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        recordResult(IFAAStats.OP_QUEUE_WAIT, acquired ?
+                IFAAStats.RESULT_OK : IFAAStats.RESULT_REJECTED, start);
+        if (!acquired) {
+            throw new RejectedExecutionException("too many IFAA transactions in flight");
+        }
+    }
+
+    private boolean awaitService() {
+        long start = mPlatform.elapsedRealtime();
+        boolean available = mTransport.awaitService(SERVICE_WAIT_MS);
+        recordResult(IFAAStats.OP_BIND_WAIT, available ?
+                IFAAStats.RESULT_OK : IFAAStats.RESULT_UNAVAILABLE, start);
+        return available;
+    }
+
+    private void recordResult(int op, int result, long start) {
+        mStats.recordResult(op, result, mPlatform.elapsedRealtime() - start);
+    }
+
+    private void traceProcessCmd(byte[] param, byte[] res) {
+        int paramLength = param != null ? param.length : -1;
+        if (res != null) {
+            mTrace.record(IFAATrace.EV_PROCESS_CMD, paramLength, res.length);
+        } else {
+            mTrace.record(IFAATrace.EV_PROCESS_CMD_FAILED, paramLength, mPlatform.getSdkInt());
+            mTrace.logRecent(8);
+        }
+    }
+
+    /**
+     * The user is about to enroll or remove fingerprints: stop caching the ID list for a
+     * while and fetch it again on the next call.
+     */
+    void onEnrollmentStarting() {
+        mEnrollmentPendingUntil = mPlatform.elapsedRealtime() + ENROLLMENT_WINDOW_MS;
+        invalidateIDList();
+    }
+
+    void traceStartBIOManager(int authType, int res) {
+        mTrace.record(IFAATrace.EV_START_BIO_MANAGER, authType, res);
+    }
+
+    IFAAStats.Snapshot getStatsSnapshot() {
+        return mStats.snapshot();
+    }
+
+    void dump(PrintWriter pw) {
+        mStats.snapshot().dump(pw);
+        mTrace.dump(pw);
+    }
+}
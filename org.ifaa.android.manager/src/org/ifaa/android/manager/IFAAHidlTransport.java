@@ -0,0 +1,78 @@
+package org.ifaa.android.manager;
+
+import android.os.HwBinder;
+import android.os.HwBlob;
+import android.os.HwParcel;
+import android.os.IHwBinder;
+import android.os.RemoteException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * IFAATransport over the vendor IMlipayService HIDL service, used before SDK 28.
+ * Only single TA commands are supported.
+ */
+final class IFAAHidlTransport implements IFAATransport {
+    private static final int CODE_PROCESS_CMD = 1;
+
+    private static final String INTERFACE_DESCRIPTOR =
+            "vendor.xiaomi.hardware.mlipay@1.0::IMlipayService";
+    private static final String SERVICE_NAME =
+            "vendor.xiaomi.hardware.mlipay@1.0::IMlipayService";
+
+    public void start(Runnable onServiceChanged) {
+    }
+
+    public boolean awaitService(long timeoutMs) {
+        return true;
+    }
+
+    public byte[] processCmd(byte[] param) throws IFAATransportException {
+        try {
+            return transactCmd(param);
+        } catch (RemoteException e) {
+            throw new IFAATransportException(e);
+        }
+    }
+
+    private byte[] transactCmd(byte[] param) throws RemoteException {
+        IHwBinder hwService = HwBinder.getService(SERVICE_NAME, "default");
+        if (hwService == null) {
+            return null;
+        }
+
+        HwParcel hidl_request = new HwParcel();
+        HwParcel hidl_reply = new HwParcel();
+        try {
+            hidl_request.writeInterfaceToken(INTERFACE_DESCRIPTOR);
+            ArrayList sbuf = new ArrayList(Arrays.asList(HwBlob.wrapArray(param)));
+            hidl_request.writeInt8Vector(sbuf);
+            hidl_request.writeInt32(sbuf.size());
+            hwService.transact(CODE_PROCESS_CMD, hidl_request, hidl_reply, 0);
+            hidl_reply.verifySuccess();
+            hidl_request.releaseTemporaryStorage();
+            ArrayList<Byte> val = hidl_reply.readInt8Vector();
+            byte[] array = new byte[val.size()];
+            for (int i = 0; i < val.size(); i++) {
+                array[i] = ((Byte) val.get(i)).byteValue();
+            }
+            return array;
+        } finally {
+            hidl_reply.release();
+        }
+    }
+
+    public byte[] processCmdShared(byte[] param) {
+        return USE_PROCESS_CMD;
+    }
+
+    public boolean processCmdBatch(List<byte[]> params, byte[][] replies, int[] status) {
+        return false;
+    }
+
+    public int[] getIDList(int bioType) {
+        return null;
+    }
+}
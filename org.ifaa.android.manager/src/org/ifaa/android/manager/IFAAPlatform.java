@@ -0,0 +1,41 @@
+package org.ifaa.android.manager;
+
+/**
+ * Clock, system properties, logging and enrollment state used by IFAAClient. Injected so
+ * the client can run on a plain JVM against fake services.
+ */
+interface IFAAPlatform {
+    /**
+     * Returned by getEnrollmentKey when the enrolled fingerprints cannot be read.
+     */
+    long ENROLLMENT_KEY_UNKNOWN = Long.MIN_VALUE;
+
+    long elapsedRealtime();
+
+    int getSdkInt();
+
+    String getDeviceModel();
+
+    String getProperty(String key, String def);
+
+    int getIntProperty(String key, int def);
+
+    long getLongProperty(String key, long def);
+
+    boolean isDebugLoggable(String tag);
+
+    void logDebug(String tag, String msg);
+
+    /**
+     * @param tr the cause, or null
+     */
+    void logError(String tag, String msg, Throwable tr);
+
+    /**
+     * May cost an IPC, so callers only ask once a cached answer has expired.
+     *
+     * @return a value that changes whenever the enrolled fingerprints change, or
+     *         ENROLLMENT_KEY_UNKNOWN
+     */
+    long getEnrollmentKey();
+}
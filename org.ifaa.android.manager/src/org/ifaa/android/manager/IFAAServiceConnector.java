@@ -0,0 +1,211 @@
+package org.ifaa.android.manager;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.IBinder.DeathRecipient;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Slog;
+
+/**
+ * Keeps a binding to the soter IFAA service alive and publishes the current binder.
+ * The service is bound as soon as the connector is started. When the remote process dies
+ * the binding is kept and the framework is left to restart the service with its own
+ * backoff; the connector only re-binds itself when the binding is dead or no restart
+ * arrives within RESTART_TIMEOUT_MS.
+ */
+final class IFAAServiceConnector {
+    private static final String TAG = "IfaaServiceConnector";
+
+    private static final long RECONNECT_DELAY_MIN_MS = 100;
+    private static final long RECONNECT_DELAY_MAX_MS = 5000;
+    // Covers ActivityManager's restart backoff for a service that crashed a few times
+    private static final long RESTART_TIMEOUT_MS = 60 * 1000;
+
+    private final Context mContext;
+    private final Intent mIntent;
+    private final Runnable mOnConnectionChanged;
+    private final Handler mHandler;
+    private final Object mLock = new Object();
+
+    private volatile IBinder mService = null;
+    // Guarded by mLock
+    private boolean mBound = false;
+    private long mReconnectDelayMs = RECONNECT_DELAY_MIN_MS;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            try {
+                service.linkToDeath(mDeathRecipient, 0);
+            } catch (RemoteException e) {
+                Slog.e(TAG, "linkToDeath fail.", e);
+                scheduleReconnect();
+                return;
+            }
+            mHandler.removeCallbacks(mReconnect);
+            mHandler.removeCallbacks(mRestartTimeout);
+            synchronized (mLock) {
+                mService = service;
+                mReconnectDelayMs = RECONNECT_DELAY_MIN_MS;
+                mLock.notifyAll();
+            }
+            mOnConnectionChanged.run();
+        }
+
+        public void onServiceDisconnected(ComponentName name) {
+            // The binding stays registered and the framework reconnects on its own
+            Slog.i(TAG, "service disconnected, waiting for reconnect.");
+            clearService(mService);
+            awaitRestart();
+        }
+
+        public void onBindingDied(ComponentName name) {
+            Slog.i(TAG, "binding died, re-bind the service.");
+            mHandler.removeCallbacks(mRestartTimeout);
+            clearService(mService);
+            scheduleReconnect();
+        }
+
+        public void onNullBinding(ComponentName name) {
+            Slog.e(TAG, "service returned a null binding.");
+            scheduleReconnect();
+        }
+    };
+
+    private final DeathRecipient mDeathRecipient = new DeathRecipient() {
+        public void binderDied() {
+            Slog.d(TAG, "binderDied, unlink the service.");
+            clearService(mService);
+            awaitRestart();
+        }
+    };
+
+    private final Runnable mRestartTimeout = new Runnable() {
+        public void run() {
+            Slog.w(TAG, "service not restarted within " + RESTART_TIMEOUT_MS + "ms, re-bind.");
+            mReconnect.run();
+        }
+    };
+
+    private final Runnable mReconnect = new Runnable() {
+        public void run() {
+            synchronized (mLock) {
+                if (mService != null) {
+                    return;
+                }
+                if (mBound) {
+                    mContext.unbindService(mConnection);
+                    mBound = false;
+                }
+            }
+            bind();
+        }
+    };
+
+    IFAAServiceConnector(Context context, String packageName, String className,
+            Runnable onConnectionChanged) {
+        mContext = context;
+        mIntent = new Intent().setClassName(packageName, className);
+        mOnConnectionChanged = onConnectionChanged;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    void start() {
+        bind();
+    }
+
+    private void bind() {
+        boolean bound;
+        synchronized (mLock) {
+            if (mBound) {
+                return;
+            }
+            bound = mBound = mContext.bindService(mIntent, mConnection, Context.BIND_AUTO_CREATE);
+        }
+        if (!bound) {
+            Slog.e(TAG, "cannot bind service " + mIntent);
+            scheduleReconnect();
+        }
+    }
+
+    private void scheduleReconnect() {
+        long delay;
+        synchronized (mLock) {
+            delay = mReconnectDelayMs;
+            mReconnectDelayMs = Math.min(mReconnectDelayMs * 2, RECONNECT_DELAY_MAX_MS);
+        }
+        mHandler.removeCallbacks(mReconnect);
+        mHandler.postDelayed(mReconnect, delay);
+    }
+
+    /**
+     * Leaves the binding in place for the framework to restart the service, re-binding
+     * only if that has not happened after RESTART_TIMEOUT_MS.
+     */
+    private void awaitRestart() {
+        synchronized (mLock) {
+            if (mService != null) {
+                return;
+            }
+        }
+        mHandler.removeCallbacks(mRestartTimeout);
+        mHandler.postDelayed(mRestartTimeout, RESTART_TIMEOUT_MS);
+    }
+
+    private void clearService(IBinder service) {
+        synchronized (mLock) {
+            if (service == null || mService != service) {
+                return;
+            }
+            mService = null;
+        }
+        service.unlinkToDeath(mDeathRecipient, 0);
+        mOnConnectionChanged.run();
+    }
+
+    /**
+     * Returns the live service binder, or null if none is available.
+     */
+    IBinder getService() {
+        IBinder service = mService;
+        if (service != null && !service.isBinderAlive()) {
+            clearService(service);
+            awaitRestart();
+            return null;
+        }
+        return service;
+    }
+
+    /**
+     * Waits up to timeoutMs for the service to be connected.
+     * @return the service binder, or null on timeout
+     */
+    IBinder awaitService(long timeoutMs) {
+        IBinder service = getService();
+        if (service != null) {
+            return service;
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+        synchronized (mLock) {
+            while (mService == null) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    mLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        return getService();
+    }
+}
@@ -0,0 +1,128 @@
+package org.ifaa.android.manager;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocation-free counters and fixed-bucket latency histograms for the IFAA client.
+ */
+public final class IFAAStats {
+    public static final int OP_PROCESS_CMD = 0;
+    public static final int OP_GET_ID_LIST = 1;
+    public static final int OP_PROCESS_BATCH = 2;
+    public static final int OP_BIND_WAIT = 3;
+    public static final int OP_QUEUE_WAIT = 4;
+    public static final int OP_COUNT = 5;
+
+    public static final int RESULT_OK = 0;
+    public static final int RESULT_REMOTE_EXCEPTION = 1;
+    public static final int RESULT_NULL_RETURN = 2;
+    public static final int RESULT_UNAVAILABLE = 3;
+    public static final int RESULT_REJECTED = 4;
+    public static final int RESULT_COUNT = 5;
+
+    private static final String[] OP_NAMES = {
+        "processCmdV2", "getIDList", "processCmdBatch", "bindWait", "queueWait"
+    };
+    private static final String[] RESULT_NAMES = {
+        "ok", "remoteException", "nullReturn", "unavailable", "rejected"
+    };
+
+    // Upper bounds in ms; the last bucket collects everything slower
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+    public static final int BUCKET_COUNT = BUCKET_BOUNDS_MS.length + 1;
+
+    private final AtomicLongArray mResults = new AtomicLongArray(OP_COUNT * RESULT_COUNT);
+    private final AtomicLongArray mRetries = new AtomicLongArray(OP_COUNT);
+    private final AtomicLongArray mLatency = new AtomicLongArray(OP_COUNT * BUCKET_COUNT);
+    private final AtomicLongArray mLatencySumMs = new AtomicLongArray(OP_COUNT);
+
+    IFAAStats() {
+    }
+
+    void recordResult(int op, int result, long elapsedMs) {
+        mResults.incrementAndGet(op * RESULT_COUNT + result);
+        mLatency.incrementAndGet(op * BUCKET_COUNT + bucketOf(elapsedMs));
+        mLatencySumMs.addAndGet(op, elapsedMs);
+    }
+
+    void recordRetry(int op) {
+        mRetries.incrementAndGet(op);
+    }
+
+    private static int bucketOf(long elapsedMs) {
+        for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+            if (elapsedMs <= BUCKET_BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS_MS.length;
+    }
+
+    Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        for (int i = 0; i < s.results.length; i++) {
+            s.results[i] = mResults.get(i);
+        }
+        for (int i = 0; i < s.latency.length; i++) {
+            s.latency[i] = mLatency.get(i);
+        }
+        for (int i = 0; i < OP_COUNT; i++) {
+            s.retries[i] = mRetries.get(i);
+            s.latencySumMs[i] = mLatencySumMs.get(i);
+        }
+        return s;
+    }
+
+    /**
+     * Point-in-time copy of the counters. Indices follow the OP_* and RESULT_* constants.
+     */
+    public static final class Snapshot {
+        final long[] results = new long[OP_COUNT * RESULT_COUNT];
+        final long[] retries = new long[OP_COUNT];
+        final long[] latency = new long[OP_COUNT * BUCKET_COUNT];
+        final long[] latencySumMs = new long[OP_COUNT];
+
+        Snapshot() {
+        }
+
+        public long getCount(int op, int result) {
+            return results[op * RESULT_COUNT + result];
+        }
+
+        public long getRetries(int op) {
+            return retries[op];
+        }
+
+        public long getBucket(int op, int bucket) {
+            return latency[op * BUCKET_COUNT + bucket];
+        }
+
+        public long getLatencySumMs(int op) {
+            return latencySumMs[op];
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println("IFAA client stats:");
+            for (int op = 0; op < OP_COUNT; op++) {
+                pw.print("  " + OP_NAMES[op] + ":");
+                long total = 0;
+                for (int r = 0; r < RESULT_COUNT; r++) {
+                    long count = getCount(op, r);
+                    total += count;
+                    pw.print(" " + RESULT_NAMES[r] + "=" + count);
+                }
+                pw.println(" retries=" + retries[op] +
+                        " avgMs=" + (total > 0 ? latencySumMs[op] / total : 0));
+                pw.print("    latency:");
+                for (int b = 0; b < BUCKET_COUNT; b++) {
+                    pw.print(b < BUCKET_BOUNDS_MS.length ?
+                            " <=" + BUCKET_BOUNDS_MS[b] + "ms:" : " >" +
+                            BUCKET_BOUNDS_MS[BUCKET_BOUNDS_MS.length - 1] + "ms:");
+                    pw.print(getBucket(op, b));
+                }
+                pw.println();
+            }
+        }
+    }
+}
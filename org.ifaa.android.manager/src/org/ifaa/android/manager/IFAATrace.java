@@ -0,0 +1,79 @@
+package org.ifaa.android.manager;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of primitive IFAA client events. Records are only turned into text
+ * when dumped, on error, or when the tag is made loggable at debug level, e.g.
+ * "adb shell setprop log.tag.IfaaManagerImpl DEBUG".
+ */
+final class IFAATrace {
+    static final int EV_GET_VERSION = 1;
+    static final int EV_GET_DEVICE_MODEL = 2;
+    static final int EV_GET_SUPPORT_BIO_TYPES = 3;
+    static final int EV_GET_EXT_INFO = 4;
+    static final int EV_PROCESS_CMD = 5;
+    static final int EV_PROCESS_CMD_FAILED = 6;
+    static final int EV_GET_ID_LIST = 7;
+    static final int EV_START_BIO_MANAGER = 8;
+
+    private static final String[] EV_NAMES = {
+        "?", "getVersion", "getDeviceModel", "getSupportBIOTypes", "getExtInfo",
+        "processCmdV2", "processCmdV2Failed", "getIDList", "startBIOManager"
+    };
+
+    private static final int CAPACITY = 256;
+    private static final int FIELDS = 4;
+
+    private final String mTag;
+    private final IFAAPlatform mPlatform;
+    // Each record holds: timestamp, event, arg1, arg2
+    private final AtomicLongArray mRecords = new AtomicLongArray(CAPACITY * FIELDS);
+    private final AtomicLong mNext = new AtomicLong();
+
+    IFAATrace(String tag, IFAAPlatform platform) {
+        mTag = tag;
+        mPlatform = platform;
+    }
+
+    void record(int event, long arg1, long arg2) {
+        long now = mPlatform.elapsedRealtime();
+        int base = (int) (mNext.getAndIncrement() % CAPACITY) * FIELDS;
+        mRecords.set(base, now);
+        mRecords.set(base + 1, event);
+        mRecords.set(base + 2, arg1);
+        mRecords.set(base + 3, arg2);
+
+        if (mPlatform.isDebugLoggable(mTag)) {
+            mPlatform.logDebug(mTag, format(base));
+        }
+    }
+
+    /**
+     * Writes the most recent records to the log, oldest first.
+     */
+    void logRecent(int count) {
+        long next = mNext.get();
+        long first = Math.max(0, Math.max(next - CAPACITY, next - count));
+        for (long i = first; i < next; i++) {
+            mPlatform.logError(mTag, "trace: " + format((int) (i % CAPACITY) * FIELDS), null);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        long next = mNext.get();
+        pw.println("IFAA client trace (" + Math.min(next, CAPACITY) + " of " + next + "):");
+        for (long i = Math.max(0, next - CAPACITY); i < next; i++) {
+            pw.println("  " + format((int) (i % CAPACITY) * FIELDS));
+        }
+    }
+
+    private String format(int base) {
+        int event = (int) mRecords.get(base + 1);
+        return mRecords.get(base) + " " +
+                (event > 0 && event < EV_NAMES.length ? EV_NAMES[event] : EV_NAMES[0]) +
+                " " + mRecords.get(base + 2) + " " + mRecords.get(base + 3);
+    }
+}
@@ -0,0 +1,45 @@
+package org.ifaa.android.manager;
+
+import java.util.List;
+
+/**
+ * Carries TA commands to the service backing IFAAClient. Retries, caching, limits
+ * and accounting stay in IFAAClient so any implementation can be swapped in.
+ */
+interface IFAATransport {
+    /**
+     * Returned by processCmdShared when the payload has to go through processCmd instead.
+     */
+    byte[] USE_PROCESS_CMD = new byte[0];
+
+    /**
+     * Starts connecting to the service.
+     * @param onServiceChanged run whenever the service connects, disconnects or dies
+     */
+    void start(Runnable onServiceChanged);
+
+    /**
+     * Waits up to timeoutMs for the service to become available.
+     * @return false if it is still unavailable
+     */
+    boolean awaitService(long timeoutMs);
+
+    byte[] processCmd(byte[] param) throws IFAATransportException;
+
+    /**
+     * Sends a TA command without copying it into the transaction itself.
+     * @return the TA reply, null on remote failure, or USE_PROCESS_CMD if not supported
+     */
+    byte[] processCmdShared(byte[] param) throws IFAATransportException;
+
+    /**
+     * Sends several TA commands in one transaction, filling replies and status in order.
+     * @return false if the service does not support batching; nothing was sent then
+     * @throws IFAATransportException if the transaction failed, in which case any of the
+     *         commands may already have run in the TA
+     */
+    boolean processCmdBatch(List<byte[]> params, byte[][] replies, int[] status)
+            throws IFAATransportException;
+
+    int[] getIDList(int bioType) throws IFAATransportException;
+}
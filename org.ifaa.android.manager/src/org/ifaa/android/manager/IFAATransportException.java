@@ -0,0 +1,17 @@
+package org.ifaa.android.manager;
+
+/**
+ * Thrown by an IFAATransport when a call did not reach the service or its reply was lost,
+ * e.g. on a RemoteException. Kept free of android.os so IFAAClient also runs on a JVM.
+ */
+final class IFAATransportException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    IFAATransportException(String message) {
+        super(message);
+    }
+
+    IFAATransportException(Throwable cause) {
+        super(cause);
+    }
+}